@@ -14,6 +14,9 @@ public class BiwordIndex implements Index
     public int numberOfDocs = -2;
     private HashMap<String, Double> pageranks = new HashMap<String, Double>();
 
+    /** Reused between ranked queries for the document scores. */
+    private ScoreAccumulator accumulator = null;
+
     public BiwordIndex()
     {
         System.err.println("Creating PageRank!");
@@ -47,6 +50,25 @@ public class BiwordIndex implements Index
         }
     }
 
+    /**
+     *  Biwords need the tokens in order, so the document is put back
+     *  together from the positions of its terms.
+     */
+    public void insertDocument(int docID, Map<String,int[]> positions)
+    {
+        int length = 0;
+        for(int[] p : positions.values())
+            length += p.length;
+        String[] tokens = new String[length];
+        for(Map.Entry<String,int[]> e : positions.entrySet())
+            for(int offset : e.getValue())
+                if(offset < length)
+                    tokens[offset] = e.getKey();
+        for(int offset = 0; offset < length; offset++)
+            if(tokens[offset] != null)
+                insert(tokens[offset], docID, offset);
+    }
+
     public PostingsList getPostings(String token)
     {
         return index.get(token);
@@ -56,9 +78,93 @@ public class BiwordIndex implements Index
     {
         PostingsList ret = search_wo_sort(query, queryType, rankingType);
         if(ret != null)
-            Collections.sort(ret.list);
+            ret.sortByScore();
         return ret;
     }
+    public PostingsList search(Query query, int queryType, int rankingType, int k)
+    {
+        if(queryType != Index.RANKED_QUERY)
+            return search_wo_sort(query, queryType, rankingType);
+        if(index == null || query.terms.size() < 2)
+            return null;
+        long startTime = System.nanoTime();
+        if(!rank(query, rankingType))
+            return null;
+        TopKCollector collector = new TopKCollector(k);
+        accumulator.collect(collector);
+        System.out.println("This query took " + (System.nanoTime() - startTime));
+        return collector.results();
+    }
+
+    /**
+     *  Scores every document that contains a biword of the query into
+     *  the accumulator, one biword at a time. Returns false if none of
+     *  the biwords are in the index.
+     */
+    private boolean rank(Query query, int rankingType)
+    {
+        if(numberOfDocs < 0)
+        {
+            numberOfDocs = docLengths.keySet().size();
+        }
+        if(accumulator == null)
+        {
+            accumulator = new ScoreAccumulator(numberOfDocs);
+        }
+        accumulator.clear();
+
+        ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+        String old_term = null;
+        for(String term : query.terms)
+        {
+            if(old_term == null)
+                old_term = term;
+            else
+            {
+                PostingsList pl = getPostings(create_biword(old_term, term));
+                old_term = term;
+                if(pl != null)
+                    lists.add(pl);
+            }
+        }
+        if(lists.isEmpty())
+            return false;
+
+        boolean tfidf = rankingType == Index.TF_IDF || rankingType == Index.COMBINATION;
+        for(PostingsList pl : lists)
+        {
+            double idf = Math.log10( numberOfDocs / pl.size() );
+            double wtq = (1.0 / (double) lists.size()) * idf;
+            PostingsList.Cursor c = pl.cursor();
+            while ( c.next() )
+            {
+                //accumulator.add(c.docID(), (1 + Math.log10(c.tf())) * idf * wtq);
+                accumulator.add(c.docID(), tfidf ? c.tf() * idf * wtq : 0);
+            }
+        }
+
+        if(tfidf)
+        {
+            for ( int j = 0; j < accumulator.size(); j++ )
+            {
+                int length = docLengths.get("" + accumulator.docID(j));
+                accumulator.setScore(j, accumulator.score(j) / length);
+            }
+        }
+        if((rankingType == Index.PAGERANK || rankingType == Index.COMBINATION) && pageranks != null)
+        {
+            for(int j = 0; j < accumulator.size(); j++)
+            {
+                String tmpStr = docIDs.get("" + accumulator.docID(j));
+                tmpStr = tmpStr.substring(tmpStr.lastIndexOf('/') + 1,
+                        tmpStr.lastIndexOf('.'));
+                accumulator.setScore(j, accumulator.score(j) + ((Double) pageranks.get(tmpStr))
+                        * PAGERANK_WEIGHT);
+            }
+        }
+        return true;
+    }
+
     public PostingsList search_wo_sort(Query query, int queryType, int rankingType)
     {
         if(numberOfDocs < 0)
@@ -104,73 +210,9 @@ public class BiwordIndex implements Index
         else if(queryType == Index.RANKED_QUERY)
         {    
             long startTime = System.nanoTime();
-
-            ArrayList<String> terms = new ArrayList<String>();
-            PostingsList result = null;
-            String old_term = null;
-            for(String term : query.terms)
-            {
-                if(old_term == null)
-                    old_term = term;
-                else
-                {
-                    String biword = create_biword(old_term, term);
-                    PostingsList pl = getPostings(biword);
-                    old_term = term;
-
-                    if(pl == null)
-                    {
-                        continue;
-                    }
-                    terms.add(biword);
-
-                    if(result == null)
-                        result = pl;
-                    else
-                        result = PostingsList.union(result, pl);
-                }
-            }
-            if(result == null) return null;
-            if(rankingType == Index.TF_IDF || rankingType == Index.COMBINATION)
-            {
-                for(String term : terms)
-                {
-                    PostingsList tmp = (PostingsList) getPostings(term);
-                    if(tmp == null) continue;
-
-                    double idf = Math.log10( numberOfDocs / tmp.size() );
-
-                    double wtq = (1.0 / (double) terms.size()) * idf;
-                    for ( PostingsEntry pe : tmp.list )
-                    {
-                        if(pe.offsets.size() != 0)
-                        {
-                            //result.addScore(pe.docID, (1 + Math.log10(pe.offsets.size()))
-                            //* idf * wtq);
-                            result.addScore(pe.docID, pe.offsets.size() * idf * wtq);
-                        }
-                    }
-                }
-                for ( PostingsEntry pe : result.list )
-                {
-                    int length = docLengths.get(""+ pe.docID);
-                    pe.score /= length;
-                }
-            }
-            if(rankingType == Index.PAGERANK || rankingType == Index.COMBINATION)
-            {
-                if(pageranks == null)
-                    return result;
-                for(PostingsEntry pe : result.list)
-                {
-                    String tmpStr = docIDs.get("" + pe.docID);
-                    tmpStr = tmpStr.substring(tmpStr.lastIndexOf('/') + 1,
-                            tmpStr.lastIndexOf('.'));
-                    result.addScore(pe.docID, ((Double) pageranks.get(tmpStr))
-                            * PAGERANK_WEIGHT);
-                }
-            }
-            //Collections.sort(result.list);
+            if(!rank(query, rankingType))
+                return null;
+            PostingsList result = accumulator.toPostingsList();
             System.out.println("This query took " + (System.nanoTime() - startTime));
             return result;
         }
@@ -190,6 +232,17 @@ public class BiwordIndex implements Index
         return numberOfDocs;
     }
 
+    public String getDocumentPath(int docID)
+    {
+        return docIDs.get("" + docID);
+    }
+
+    public int getDocumentLength(int docID)
+    {
+        Integer length = docLengths.get("" + docID);
+        return length == null ? 0 : length;
+    }
+
     public void addTerm(int docID, String token)
     {
         HashSet<String> tmp = terms.get(docID);
@@ -0,0 +1,355 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *   An immutable, compressed postings list.
+ *
+ *   The docIDs and the offsets within each posting are d-gapped and
+ *   written as variable-byte numbers. The layout is
+ *
+ *     size, data length,
+ *     data: per posting: docID gap, tf, tf offset gaps
+ *     skips: number of skips, skip interval,
+ *            per skip: docID gap, data position gap
+ *
+ *   The first docID is a gap from 0 and the first offset of every
+ *   posting is a gap from 0. Gaps are computed modulo 2^32, so the
+ *   (possibly negative) hash code docIDs of a MegaIndex still work.
+ *
+ *   A skip pointer is written for every PostingsList.skipInterval(size)
+ *   postings. It holds the docID of the posting it points to and where
+ *   in the data that posting starts.
+ */
+public class CompressedPostings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of postings. */
+    private final int size;
+
+    /** The encoded postings. */
+    private final byte[] bytes;
+
+
+    private CompressedPostings( int size, byte[] bytes ) {
+        this.size = size;
+        this.bytes = bytes;
+    }
+
+    /** Compresses a postings list. */
+    public static CompressedPostings encode( PostingsList pl ) {
+        Encoder enc = new Encoder();
+        enc.writeList( pl.cursor(), pl.size() );
+        return new CompressedPostings( pl.size(), enc.toByteArray() );
+    }
+
+    /** Wraps bytes written by an Encoder. */
+    public static CompressedPostings wrap( byte[] bytes ) {
+        return new CompressedPostings( readVB( ByteBuffer.wrap( bytes ), new int[] { 0 } ), bytes );
+    }
+
+    /** Number of postings in this list. */
+    public int size() {
+        return size;
+    }
+
+    /** Number of bytes used by the encoded postings. */
+    public int byteSize() {
+        return bytes.length;
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /** Returns an iterator decoding the postings one at a time. */
+    public PostingsIterator iterator() {
+        return new Decoder( ByteBuffer.wrap( bytes ), 0 );
+    }
+
+    /** Decompresses the whole list. */
+    public PostingsList decode() {
+        PostingsList pl = new PostingsList();
+        PostingsIterator it = iterator();
+        while ( it.next() ) {
+            pl.appendPosting( it );
+        }
+        return pl;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Reads a variable-byte number starting at pos[0] and moves pos[0]
+     *  past it.
+     */
+    static int readVB( ByteBuffer buf, int[] pos ) {
+        int p = pos[0];
+        int v = 0;
+        int shift = 0;
+        byte b;
+        while ( ((b = buf.get( p++ )) & 0x80) == 0 ) {
+            v |= b << shift;
+            shift += 7;
+        }
+        v |= (b & 0x7f) << shift;
+        pos[0] = p;
+        return v;
+    }
+
+
+    /**
+     *  Writes postings in the compressed format into a growable byte array.
+     */
+    public static class Encoder {
+
+        private byte[] buf = new byte[64];
+        private int length = 0;
+
+        /** Writes v as an unsigned variable-byte number. The last byte has the high bit set. */
+        public void writeVB( int v ) {
+            ensureCapacity( length + 5 );
+            while ( (v & ~0x7f) != 0 ) {
+                buf[length++] = (byte)(v & 0x7f);
+                v >>>= 7;
+            }
+            buf[length++] = (byte)(v | 0x80);
+        }
+
+        /** Writes a whole list of n postings, with skip pointers. */
+        public void writeList( PostingsIterator it, int n ) {
+            Encoder data = new Encoder();
+            Encoder skips = new Encoder();
+            int step = PostingsList.skipInterval( n );
+            int numberOfSkips = 0;
+            int lastSkipDocID = 0;
+            int lastSkipPosition = 0;
+            int lastDocID = 0;
+            int i = 0;
+            while ( it.next() ) {
+                int docID = it.docID();
+                int tf = it.tf();
+                if ( i > 0 && i % step == 0 ) {
+                    skips.writeVB( docID - lastSkipDocID );
+                    skips.writeVB( data.length - lastSkipPosition );
+                    lastSkipDocID = docID;
+                    lastSkipPosition = data.length;
+                    numberOfSkips++;
+                }
+                data.writeVB( docID - lastDocID );
+                data.writeVB( tf );
+                int lastOffset = 0;
+                for ( int k=0; k<tf; k++ ) {
+                    int offset = it.offset( k );
+                    data.writeVB( offset - lastOffset );
+                    lastOffset = offset;
+                }
+                lastDocID = docID;
+                i++;
+            }
+            writeVB( n );
+            writeVB( data.length );
+            write( data );
+            writeVB( numberOfSkips );
+            writeVB( step );
+            write( skips );
+        }
+
+        /** Appends everything written to other. */
+        public void write( Encoder other ) {
+            ensureCapacity( length + other.length );
+            System.arraycopy( other.buf, 0, buf, length, other.length );
+            length += other.length;
+        }
+
+        /** Appends len bytes of b starting at off. */
+        public void write( byte[] b, int off, int len ) {
+            ensureCapacity( length + len );
+            System.arraycopy( b, off, buf, length, len );
+            length += len;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /** Writes everything written so far to out. */
+        public void writeTo( OutputStream out ) throws IOException {
+            out.write( buf, 0, length );
+        }
+
+        /** Forgets everything written so far. */
+        public void reset() {
+            length = 0;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf( buf, length );
+        }
+
+        private void ensureCapacity( int capacity ) {
+            if ( capacity > buf.length ) {
+                buf = Arrays.copyOf( buf, Math.max( capacity, buf.length * 2 ));
+            }
+        }
+    }
+
+
+    /**
+     *  Decodes postings straight from a buffer. Offsets are only decoded
+     *  when they are asked for, otherwise they are skipped.
+     */
+    public static class Decoder implements PostingsIterator {
+
+        private final ByteBuffer buf;
+
+        /** Read position, pos[0] is the next unread byte. */
+        private final int[] pos = new int[1];
+
+        /** Number of postings in the list. */
+        private final int size;
+
+        /** Where the posting data starts and ends in buf. */
+        private final int dataStart;
+        private final int dataEnd;
+
+        /** Number of postings not yet read. */
+        private int remaining;
+
+        private int docID = 0;
+        private int tf = 0;
+
+        /** @code{true} if the offsets of the current posting have been read. */
+        private boolean offsetsRead = true;
+
+        private int[] offsets = new int[8];
+
+        /** The skip pointers, read the first time they are needed. */
+        private int[] skipDocIDs = null;
+        private int[] skipPositions = null;
+        private int skipInterval;
+
+
+        /** Starts decoding the list that begins at start in buf. */
+        public Decoder( ByteBuffer buf, int start ) {
+            this.buf = buf;
+            pos[0] = start;
+            size = readVB( buf, pos );
+            int dataLength = readVB( buf, pos );
+            dataStart = pos[0];
+            dataEnd = dataStart + dataLength;
+            remaining = size;
+        }
+
+        public boolean next() {
+            if ( remaining == 0 ) {
+                return false;
+            }
+            if ( !offsetsRead ) {
+                skipVB( tf );
+            }
+            docID += readVB( buf, pos );
+            tf = readVB( buf, pos );
+            offsetsRead = false;
+            remaining--;
+            return true;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int tf() {
+            return tf;
+        }
+
+        public int offset( int k ) {
+            if ( !offsetsRead ) {
+                if ( tf > offsets.length ) {
+                    offsets = new int[Math.max( tf, offsets.length * 2 )];
+                }
+                int offset = 0;
+                for ( int i=0; i<tf; i++ ) {
+                    offset += readVB( buf, pos );
+                    offsets[i] = offset;
+                }
+                offsetsRead = true;
+            }
+            return offsets[k];
+        }
+
+        public boolean skipTo( int target ) {
+            if ( remaining == size && !next() ) {
+                return false;
+            }
+            if ( docID >= target ) {
+                return true;
+            }
+            if ( skipDocIDs == null ) {
+                readSkips();
+            }
+            // Follow the last skip pointer beyond the current posting
+            // that does not pass the target.
+            int step = skipInterval;
+            int current = size - remaining - 1;
+            int skip = -1;
+            for ( int s=current/step; s<skipDocIDs.length && skipDocIDs[s] <= target; s++ ) {
+                skip = s;
+            }
+            if ( skip >= 0 && (skip+1)*step > current ) {
+                pos[0] = dataStart + skipPositions[skip];
+                readVB( buf, pos );
+                docID = skipDocIDs[skip];
+                tf = readVB( buf, pos );
+                offsetsRead = false;
+                remaining = size - (skip+1)*step - 1;
+            }
+            while ( docID < target ) {
+                if ( !next() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Reads the skip pointers stored after the posting data. */
+        private void readSkips() {
+            int[] p = new int[] { dataEnd };
+            int n = readVB( buf, p );
+            skipInterval = readVB( buf, p );
+            skipDocIDs = new int[n];
+            skipPositions = new int[n];
+            int skipDocID = 0;
+            int skipPosition = 0;
+            for ( int s=0; s<n; s++ ) {
+                skipDocID += readVB( buf, p );
+                skipPosition += readVB( buf, p );
+                skipDocIDs[s] = skipDocID;
+                skipPositions[s] = skipPosition;
+            }
+        }
+
+        /** Skips n variable-byte numbers without decoding them. */
+        private void skipVB( int n ) {
+            int p = pos[0];
+            while ( n > 0 ) {
+                if ( (buf.get( p++ ) & 0x80) != 0 ) {
+                    n--;
+                }
+            }
+            pos[0] = p;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *   A HashedIndex that several threads can insert into at once.
+ *
+ *   The terms are kept in a ConcurrentHashMap, so looking up and adding
+ *   terms takes no global lock. Each postings list is its own lock, so
+ *   threads only wait for each other when they insert the same term at
+ *   the same time. Searches MUST not run while tokens are inserted.
+ *
+ *   Documents inserted by several threads at once arrive out of docID
+ *   order, which makes PostingsList.add shift postings. The Indexer
+ *   therefore gives each thread an index of its own, in which docIDs
+ *   only increase, and adds them all with addAll at the end.
+ */
+public class ConcurrentHashedIndex extends HashedIndex {
+
+    private final ConcurrentHashMap<String,PostingsList> postings;
+
+
+    public ConcurrentHashedIndex() {
+        this(new ConcurrentHashMap<String,PostingsList>());
+    }
+
+    private ConcurrentHashedIndex(ConcurrentHashMap<String,PostingsList> postings) {
+        super(postings);
+        this.postings = postings;
+    }
+
+
+    /**
+     *  Inserts this token in the index. May be called by several threads
+     *  at once. Documents inserted at the same time get their postings in
+     *  docID order, since PostingsList.add keeps them sorted.
+     */
+    public void insert( String token, int docID, int offset ) {
+        PostingsList current_list = postings.get(token);
+
+        // If the token does not exist yet - create a new postingslist for
+        // it, unless another thread just did.
+        if(current_list == null) {
+            PostingsList created = new PostingsList();
+            current_list = postings.putIfAbsent(token, created);
+            if(current_list == null)
+                current_list = created;
+        }
+
+        synchronized(current_list) {
+            current_list.add(docID, offset);
+        }
+    }
+
+    /**
+     *  Inserts the terms of a document with their positions. May be
+     *  called by several threads at once.
+     */
+    public void insertDocument( int docID, Map<String,int[]> positions ) {
+        for(Map.Entry<String,int[]> e : positions.entrySet()) {
+            PostingsList current_list = postings.get(e.getKey());
+            if(current_list == null) {
+                PostingsList created = new PostingsList();
+                current_list = postings.putIfAbsent(e.getKey(), created);
+                if(current_list == null)
+                    current_list = created;
+            }
+            synchronized(current_list) {
+                current_list.add(docID, e.getValue());
+            }
+        }
+    }
+
+    /**
+     *  Adds the postings of another index, whose documents are not in
+     *  this one. May be called by several threads at once. A term that
+     *  is new to this index takes over the postings list of the other
+     *  index, so the other index MUST not be used afterwards.
+     */
+    public void addAll( HashedIndex other ) {
+        for(Map.Entry<String,PostingsList> e : other.index.entrySet()) {
+            PostingsList current_list = postings.putIfAbsent(e.getKey(), e.getValue());
+            if(current_list != null) {
+                synchronized(current_list) {
+                    current_list.merge_pl(e.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ *   Reads the text of the files given to the Indexer.
+ *
+ *   Each file is opened once, as a FileChannel. Its first bytes tell
+ *   whether it is a PDF, in which case the channel is handed to a
+ *   PDFExtractor, and otherwise it is decoded with the given charset.
+ *   Bytes that are not valid in the charset are decoded as replacement
+ *   characters, which the tokenizer treats as whitespace.
+ *
+ *   Text files are decoded BUFFER_SIZE bytes at a time while the
+ *   tokenizer reads them, into buffers that are kept between files. A
+ *   reader MUST therefore only be used by one thread at a time, and
+ *   only for one file at a time.
+ */
+public class DocumentReader {
+
+    /** The first bytes of a PDF file. */
+    private static final byte[] PDF_MAGIC = { '%', 'P', 'D', 'F' };
+
+    /** Size of the buffers. */
+    private static final int BUFFER_SIZE = 1 << 14;
+
+    private final CharsetDecoder decoder;
+
+    /** Extracts the text of PDF files. */
+    private final PDFExtractor pdfs;
+
+    /** Bytes read from the file but not decoded yet. */
+    private final ByteBuffer bytes = ByteBuffer.allocate( BUFFER_SIZE );
+
+    /** Characters decoded but not read by the tokenizer yet. */
+    private final CharBuffer chars = CharBuffer.allocate( BUFFER_SIZE );
+
+    /** The text file being read, or null if there is none. */
+    private FileChannel channel = null;
+
+    /**
+     *  true when the channel has no more bytes, when all of them are
+     *  decoded, and when the decoder is flushed.
+     */
+    private boolean endOfInput;
+    private boolean decoded;
+    private boolean flushed;
+
+    /** Reads the decoded text of the file being read. */
+    private final Reader text = new Reader() {
+        public int read( char[] cbuf, int off, int len ) throws IOException {
+            if ( channel == null || (!chars.hasRemaining() && !decode()) ) {
+                close();
+                return -1;
+            }
+            int n = Math.min( len, chars.remaining() );
+            chars.get( cbuf, off, n );
+            return n;
+        }
+
+        public void close() throws IOException {
+            if ( channel != null ) {
+                channel.close();
+                channel = null;
+            }
+        }
+    };
+
+
+    public DocumentReader( Charset charset, PDFExtractor pdfs ) {
+        this.pdfs = pdfs;
+        decoder = charset.newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    }
+
+
+    /**
+     *  Returns a tokenizer of the text of the file @code{f}. The file is
+     *  closed when the tokenizer has read all of it or is closed, and at
+     *  the latest when the next file is opened.
+     */
+    public SimpleTokenizer open( File f ) throws IOException {
+        text.close();
+        FileChannel channel = new FileInputStream( f ).getChannel();
+        try {
+            bytes.clear();
+            if ( fill( channel ) && isPDF() ) {
+                // We assume this is a PDF file. The extractor closes the channel.
+                channel.position( 0 );
+                FileChannel pdf = channel;
+                channel = null;
+                Reader pages = pdfs.extract( f, pdf );
+                if ( pages != null ) {
+                    return new SimpleTokenizer( pages );
+                }
+                // Perhaps it wasn't a PDF file after all
+                channel = new FileInputStream( f ).getChannel();
+                bytes.clear();
+            }
+            // We hope this is ordinary text. The bytes read so far are
+            // decoded first.
+            decoder.reset();
+            chars.clear();
+            chars.flip();
+            endOfInput = false;
+            decoded = false;
+            flushed = false;
+            this.channel = channel;
+            channel = null;
+            return new SimpleTokenizer( text );
+        }
+        finally {
+            if ( channel != null ) {
+                channel.close();
+            }
+        }
+    }
+
+
+    /**
+     *  Reads from the channel until the buffer holds the first bytes of a
+     *  PDF file or the file ends. Returns true if there were that many.
+     */
+    private boolean fill( FileChannel channel ) throws IOException {
+        while ( bytes.position() < PDF_MAGIC.length ) {
+            if ( channel.read( bytes ) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isPDF() {
+        for ( int i=0; i<PDF_MAGIC.length; i++ ) {
+            if ( bytes.get( i ) != PDF_MAGIC[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     *  Decodes the next bytes of the file into the emptied char buffer.
+     *  Returns false if the file has no more text.
+     */
+    private boolean decode() throws IOException {
+        chars.clear();
+        while ( chars.position() == 0 && !flushed ) {
+            CoderResult result = CoderResult.UNDERFLOW;
+            if ( !decoded ) {
+                if ( !endOfInput && channel.read( bytes ) < 0 ) {
+                    endOfInput = true;
+                }
+                bytes.flip();
+                result = decoder.decode( bytes, chars, endOfInput );
+                bytes.compact();
+                decoded = endOfInput && result.isUnderflow();
+            }
+            if ( decoded ) {
+                result = decoder.flush( chars );
+                flushed = result.isUnderflow();
+            }
+            if ( result.isError() ) {
+                result.throwException();
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+}
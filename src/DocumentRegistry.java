@@ -0,0 +1,615 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *   Hands out dense docIDs 0 .. N-1 for documents identified by their
+ *   path, and keeps the per-document data of an index in flat arrays
+ *   indexed by docID.
+ *
+ *   The documents of an index on disk are read from memory-mapped side
+ *   files, which write() only appends to:
+ *
+ *     name.paths    the UTF-8 bytes of all paths, in docID order
+ *     name.offsets  where the path of each document ends in name.paths
+ *                   (int)
+ *     name.lengths  the number of tokens of each document (int)
+ *     name.ranks    the PageRank of each document (double)
+ *
+ *   The manifest of the index says how many documents are committed,
+ *   and only those are mapped, so whatever a crashed write appended
+ *   after them is ignored, and overwritten by the next write. Opening
+ *   an index does not read the files into the heap. Documents
+ *   registered after the last write are kept on the heap.
+ *
+ *   A document is found by its path in the runs, each a file
+ *   run.order holding some of the docIDs sorted by path. Every write
+ *   adds a run of the documents it appends, merged with the previous
+ *   runs that are less than twice as large, so there are few runs and
+ *   each docID is copied a logarithmic number of times. The tombstones
+ *   of deleted documents are a bitset indexed by docID (long), written
+ *   as a whole to deleted.deleted by every write.
+ *
+ *   A deleted document keeps its docID, so that the postings of other
+ *   documents stay valid. Its path can then be registered again as a
+ *   new document, and the runs find the one that is not deleted.
+ */
+public class DocumentRegistry {
+
+    public static final String PATHS_SUFFIX = ".paths";
+    public static final String OFFSETS_SUFFIX = ".offsets";
+    public static final String LENGTHS_SUFFIX = ".lengths";
+    public static final String RANKS_SUFFIX = ".ranks";
+    public static final String ORDER_SUFFIX = ".order";
+    public static final String DELETED_SUFFIX = ".deleted";
+
+    /** The name of the side files, or null if it has not been given one. */
+    private String files = null;
+
+    /** Number of documents in the mapped files, they have docIDs 0 .. base-1. */
+    private int base = 0;
+
+    private MappedByteBuffer pathFile = null;
+    private MappedByteBuffer offsetFile = null;
+    private MappedByteBuffer lengthFile = null;
+    private MappedByteBuffer rankFile = null;
+
+    /** The runs and their names, oldest first. */
+    private ArrayList<MappedByteBuffer> runs = new ArrayList<MappedByteBuffer>();
+    private ArrayList<String> runNames = new ArrayList<String>();
+
+    /** The path of each docID from base on. */
+    private ArrayList<String> paths = new ArrayList<String>();
+
+    /** The docID of each path from base on. */
+    private HashMap<String,Integer> ids = new HashMap<String,Integer>();
+
+    /** The number of tokens in each document from base on. */
+    private int[] lengths = new int[16];
+
+    /** The PageRank of each document from base on, valid for the first ranked ones. */
+    private double[] pageranks = new double[16];
+    private int ranked = 0;
+
+    /** The docIDs of deleted documents. */
+    private BitSet deleted = new BitSet();
+
+
+    public DocumentRegistry() {
+    }
+
+
+    /** Opens the documents that the manifest m has committed in dir. */
+    public static DocumentRegistry open( String dir, Manifest m ) throws IOException {
+        DocumentRegistry r = new DocumentRegistry();
+        r.files = m.documents;
+        r.map( dir, m.documentCount );
+        r.base = m.documentCount;
+        for ( String run : m.runs ) {
+            r.runs.add( Segment.map( new File( dir, run + ORDER_SUFFIX )));
+            r.runNames.add( run );
+        }
+        if ( m.deleted != null ) {
+            ByteBuffer b = Segment.map( new File( dir, m.deleted + DELETED_SUFFIX ));
+            long[] words = new long[b.limit() / 8];
+            b.asLongBuffer().get( words );
+            r.deleted = BitSet.valueOf( words );
+        }
+        return r;
+    }
+
+    /** Maps the first n documents in the side files. */
+    private void map( String dir, int n ) throws IOException {
+        offsetFile = Segment.map( new File( dir, files + OFFSETS_SUFFIX ), 4L * n );
+        pathFile = Segment.map( new File( dir, files + PATHS_SUFFIX ), pathEnd( n ));
+        lengthFile = Segment.map( new File( dir, files + LENGTHS_SUFFIX ), 4L * n );
+        rankFile = Segment.map( new File( dir, files + RANKS_SUFFIX ), 8L * n );
+    }
+
+    /** Returns true if the side files of the documents called name exist in dir. */
+    public static boolean exists( String dir, String name ) {
+        return name != null && new File( dir, name + PATHS_SUFFIX ).exists();
+    }
+
+
+    /** Reads the mapped side files into the page cache. */
+    public void load() {
+        if ( base > 0 ) {
+            pathFile.load();
+            offsetFile.load();
+            lengthFile.load();
+            rankFile.load();
+            for ( MappedByteBuffer run : runs ) {
+                run.load();
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the docID of the document with the given path, giving
+     *  it the next free docID if it is new.
+     */
+    public int register( String path ) {
+        int id = id( path );
+        if ( id >= 0 ) {
+            return id;
+        }
+        int docID = size();
+        paths.add( path );
+        ids.put( path, docID );
+        return docID;
+    }
+
+    /** Returns the docID of the document with the given path, or -1. */
+    public int id( String path ) {
+        Integer id = ids.get( path );
+        if ( id != null ) {
+            return id;
+        }
+        for ( MappedByteBuffer run : runs ) {
+            int docID = find( run, path );
+            if ( docID >= 0 ) {
+                return docID;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the docID in a run of the document with the given path that is not deleted, or -1. */
+    private int find( MappedByteBuffer run, String path ) {
+        int n = run.limit() / 4;
+        // Binary search for the first docID whose path is not smaller.
+        int lo = 0;
+        int hi = n;
+        while ( lo < hi ) {
+            int mid = (lo + hi) >>> 1;
+            if ( path( run.getInt( 4 * mid )).compareTo( path ) < 0 ) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        // Documents deleted after the run was written are still in it.
+        for ( ; lo < n; lo++ ) {
+            int docID = run.getInt( 4 * lo );
+            if ( !path( docID ).equals( path )) {
+                break;
+            }
+            if ( !deleted.get( docID )) {
+                return docID;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the path of a document. */
+    public String path( int docID ) {
+        if ( docID >= base ) {
+            return paths.get( docID - base );
+        }
+        int from = (int) pathEnd( docID );
+        byte[] bytes = new byte[(int) pathEnd( docID + 1 ) - from];
+        ByteBuffer b = pathFile.duplicate();
+        b.position( from );
+        b.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /** Where the paths of the first n mapped documents end in the paths file. */
+    private long pathEnd( int n ) {
+        return n == 0 ? 0 : offsetFile.getInt( 4 * (n - 1) );
+    }
+
+    /** Number of registered documents. */
+    public int size() {
+        return base + paths.size();
+    }
+
+    /** Sets the length of a document that has not been written yet. */
+    public void setLength( int docID, int length ) {
+        if ( docID < base ) {
+            throw new IllegalArgumentException( "Document " + docID + " has been written, its length cannot change" );
+        }
+        int i = docID - base;
+        if ( i >= lengths.length ) {
+            lengths = Arrays.copyOf( lengths, Math.max( i + 1, lengths.length * 2 ));
+        }
+        lengths[i] = length;
+    }
+
+    /** The number of tokens in a document. */
+    public int length( int docID ) {
+        if ( docID >= base ) {
+            int i = docID - base;
+            return i < lengths.length ? lengths[i] : 0;
+        }
+        return lengthFile.getInt( 4 * docID );
+    }
+
+    /**
+     *  Looks up the PageRank of every document registered since the
+     *  side files were written. The ranks are given by file name
+     *  without extension, as computed by PageRank.
+     */
+    public void setPageranks( Map<String,Double> byName ) {
+        ranked = 0;
+        for ( int i=0; i<paths.size(); i++ ) {
+            Double pr = byName.get( name( paths.get( i )));
+            setPagerank( base + i, pr == null ? 0 : pr );
+        }
+    }
+
+    /** Returns true if every document has a PageRank. */
+    public boolean hasPageranks() {
+        return ranked == paths.size();
+    }
+
+    public double pagerank( int docID ) {
+        return docID < base ? rankFile.getDouble( 8 * docID ) : pageranks[docID - base];
+    }
+
+    /** Sets the PageRank of the first document without one. */
+    private void setPagerank( int docID, double pagerank ) {
+        int i = docID - base;
+        if ( i != ranked ) {
+            return;
+        }
+        if ( i >= pageranks.length ) {
+            pageranks = Arrays.copyOf( pageranks, Math.max( i + 1, pageranks.length * 2 ));
+        }
+        pageranks[i] = pagerank;
+        ranked++;
+    }
+
+    /**
+     *  Registers all documents of other in this registry, with their
+     *  lengths, ranks and deletions, and returns the new docID of each
+     *  docID in other.
+     */
+    public int[] add_all( DocumentRegistry other ) {
+        int[] map = new int[other.size()];
+        boolean ranks = other.hasPageranks();
+        for ( int docID=0; docID<map.length; docID++ ) {
+            if ( other.isDeleted( docID )) {
+                // A new docID that stays deleted.
+                map[docID] = size();
+                paths.add( "" );
+                deleted.set( map[docID] );
+            }
+            else {
+                map[docID] = register( other.path( docID ));
+            }
+            setLength( map[docID], other.length( docID ));
+            if ( ranks ) {
+                setPagerank( map[docID], other.pagerank( docID ));
+            }
+        }
+        return map;
+    }
+
+
+    /**
+     *  Deletes a document. Its docID is never handed out again, and its
+     *  path can be registered again as a new document.
+     */
+    public void delete( int docID ) {
+        if ( docID >= base ) {
+            ids.remove( paths.get( docID - base ));
+        }
+        deleted.set( docID );
+    }
+
+    public boolean isDeleted( int docID ) {
+        return deleted.get( docID );
+    }
+
+    /** Returns true if any document has been deleted. */
+    public boolean hasDeletions() {
+        return !deleted.isEmpty();
+    }
+
+    /** Number of deleted documents. */
+    public int numberOfDeleted() {
+        return deleted.cardinality();
+    }
+
+    /** The docIDs of the deleted documents. The set MUST not be changed. */
+    public BitSet deleted() {
+        return deleted;
+    }
+
+
+    /**
+     *  Returns a copy of the first n documents that later changes to
+     *  this registry do not affect, so that it can be written in the
+     *  background. n must not be smaller than the number of documents
+     *  in the mapped files, and every document must have a PageRank.
+     *  Once the copy is written, rebase() moves its documents off the
+     *  heap of this registry.
+     */
+    public DocumentRegistry snapshot( int n ) {
+        DocumentRegistry r = new DocumentRegistry();
+        r.files = files;
+        r.base = base;
+        r.pathFile = pathFile;
+        r.offsetFile = offsetFile;
+        r.lengthFile = lengthFile;
+        r.rankFile = rankFile;
+        r.runs = new ArrayList<MappedByteBuffer>( runs );
+        r.runNames = new ArrayList<String>( runNames );
+        int heap = n - base;
+        r.paths = new ArrayList<String>( paths.subList( 0, heap ));
+        r.lengths = Arrays.copyOf( lengths, Math.max( heap, 1 ));
+        r.pageranks = Arrays.copyOf( pageranks, Math.max( heap, 1 ));
+        r.ranked = heap;
+        r.deleted = (BitSet) deleted.clone();
+        return r;
+    }
+
+    /**
+     *  Maps the side files that snapshot, a snapshot of this registry,
+     *  has been written to, and drops the documents it wrote from the
+     *  heap.
+     */
+    public void rebase( DocumentRegistry snapshot ) {
+        int written = snapshot.base - base;
+        files = snapshot.files;
+        pathFile = snapshot.pathFile;
+        offsetFile = snapshot.offsetFile;
+        lengthFile = snapshot.lengthFile;
+        rankFile = snapshot.rankFile;
+        runs = new ArrayList<MappedByteBuffer>( snapshot.runs );
+        runNames = new ArrayList<String>( snapshot.runNames );
+        dropWritten( written );
+    }
+
+    /** Forgets the first n documents on the heap, which are in the mapped files. */
+    private void dropWritten( int n ) {
+        for ( int i=0; i<n; i++ ) {
+            String path = paths.get( i );
+            Integer id = ids.get( path );
+            if ( id != null && id == base + i ) {
+                ids.remove( path );
+            }
+        }
+        paths = new ArrayList<String>( paths.subList( n, paths.size() ));
+        lengths = Arrays.copyOfRange( lengths, n, Math.max( lengths.length, n + 16 ));
+        pageranks = Arrays.copyOfRange( pageranks, n, Math.max( pageranks.length, n + 16 ));
+        ranked = Math.max( ranked - n, 0 );
+        base += n;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Returns true if the side files have been given a name. */
+    public boolean hasFiles() {
+        return files != null;
+    }
+
+    /** Gives the side files a name before they are first written. */
+    public void setFiles( String name ) {
+        if ( files != null ) {
+            throw new IllegalStateException( "The document files are called " + files );
+        }
+        files = name;
+    }
+
+    /**
+     *  Appends the documents registered since the last write to the side
+     *  files in dir, and records them in the manifest m. The run of the
+     *  new documents and the tombstones are written to files called
+     *  name, which must be new. Every document must have a PageRank.
+     *  The documents are then read from the files instead of the heap.
+     */
+    public void write( String dir, String name, Manifest m ) throws IOException {
+        if ( files == null ) {
+            throw new IllegalStateException( "The document files have no name" );
+        }
+        int n = size();
+        append( dir );
+        int[] order = heapOrder();
+        if ( order.length > 0 ) {
+            writeRun( dir, name, order );
+        }
+        // The new documents are read from the files from now on.
+        map( dir, n );
+        dropWritten( n - base );
+
+        if ( !deleted.isEmpty() ) {
+            FileOutputStream file = new FileOutputStream( new File( dir, name + DELETED_SUFFIX ));
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( file, 1 << 16 ));
+            for ( long word : deleted.toLongArray() ) {
+                out.writeLong( word );
+            }
+            out.flush();
+            Manifest.sync( file );
+            out.close();
+        }
+
+        m.documents = files;
+        m.documentCount = n;
+        m.runs = new ArrayList<String>( runNames );
+        m.deleted = deleted.isEmpty() ? null : name;
+    }
+
+
+    /** Appends the documents on the heap to the side files, and forces them to disk. */
+    private void append( String dir ) throws IOException {
+        int heap = paths.size();
+        long end = pathEnd( base );
+        RandomAccessFile pathsFile = openForAppend( new File( dir, files + PATHS_SUFFIX ), end );
+        RandomAccessFile offsetsFile = openForAppend( new File( dir, files + OFFSETS_SUFFIX ), 4L * base );
+        DataOutputStream pathsOut = output( pathsFile );
+        DataOutputStream offsetsOut = output( offsetsFile );
+        for ( int i=0; i<heap; i++ ) {
+            byte[] bytes = paths.get( i ).getBytes( StandardCharsets.UTF_8 );
+            pathsOut.write( bytes );
+            end += bytes.length;
+            if ( end > Integer.MAX_VALUE ) {
+                throw new IOException( "The paths of " + files + " are too long to be mapped" );
+            }
+            offsetsOut.writeInt( (int) end );
+        }
+        close( pathsOut, pathsFile );
+        close( offsetsOut, offsetsFile );
+
+        RandomAccessFile file = openForAppend( new File( dir, files + LENGTHS_SUFFIX ), 4L * base );
+        DataOutputStream out = output( file );
+        for ( int i=0; i<heap; i++ ) {
+            out.writeInt( lengths[i] );
+        }
+        close( out, file );
+
+        file = openForAppend( new File( dir, files + RANKS_SUFFIX ), 8L * base );
+        out = output( file );
+        for ( int i=0; i<heap; i++ ) {
+            out.writeDouble( pageranks[i] );
+        }
+        close( out, file );
+    }
+
+    /**
+     *  Opens f to append to it after its first size bytes, which must be
+     *  there. Anything after them has not been committed, and is dropped.
+     */
+    private static RandomAccessFile openForAppend( File f, long size ) throws IOException {
+        RandomAccessFile file = new RandomAccessFile( f, "rw" );
+        if ( file.length() < size ) {
+            file.close();
+            throw new IOException( f + " is shorter than " + size + " bytes" );
+        }
+        file.setLength( size );
+        file.seek( size );
+        return file;
+    }
+
+    private static DataOutputStream output( RandomAccessFile file ) throws IOException {
+        return new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file.getFD() ), 1 << 16 ));
+    }
+
+    private static void close( DataOutputStream out, RandomAccessFile file ) throws IOException {
+        out.flush();
+        file.getChannel().force( true );
+        file.close();
+    }
+
+
+    /** The docIDs of the documents on the heap that are not deleted, sorted by path. */
+    private int[] heapOrder() {
+        Integer[] order = new Integer[paths.size()];
+        int n = 0;
+        for ( int i=0; i<order.length; i++ ) {
+            if ( !deleted.get( base + i )) {
+                order[n++] = base + i;
+            }
+        }
+        Arrays.sort( order, 0, n, new Comparator<Integer>() {
+            public int compare( Integer a, Integer b ) {
+                return paths.get( a - base ).compareTo( paths.get( b - base ));
+            }
+        });
+        int[] docIDs = new int[n];
+        for ( int i=0; i<n; i++ ) {
+            docIDs[i] = order[i];
+        }
+        return docIDs;
+    }
+
+    /**
+     *  Writes the run called name, of the sorted docIDs in order and of
+     *  the last runs that are less than twice as large as the new run.
+     *  The runs are merged by path, streaming the paths from the mapped
+     *  files, and deleted documents are left out.
+     */
+    private void writeRun( String dir, String name, int[] order ) throws IOException {
+        int from = runs.size();
+        long size = order.length;
+        while ( from > 0 && runs.get( from - 1 ).limit() / 4 < 2 * size ) {
+            from--;
+            size += runs.get( from ).limit() / 4;
+        }
+        // One cursor per run, the new documents last.
+        int k = runs.size() - from + 1;
+        IntBuffer[] cursors = new IntBuffer[k];
+        String[] heads = new String[k];
+        for ( int i=0; i<k-1; i++ ) {
+            cursors[i] = runs.get( from + i ).asIntBuffer();
+        }
+        cursors[k-1] = IntBuffer.wrap( order );
+
+        File file = new File( dir, name + ORDER_SUFFIX );
+        FileOutputStream stream = new FileOutputStream( file );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream, 1 << 16 ));
+        while ( true ) {
+            int min = -1;
+            for ( int i=0; i<k; i++ ) {
+                if ( heads[i] == null && !advance( cursors[i] )) {
+                    continue;
+                }
+                if ( heads[i] == null ) {
+                    heads[i] = path( cursors[i].get( cursors[i].position() ));
+                }
+                if ( min < 0 || heads[i].compareTo( heads[min] ) < 0 ) {
+                    min = i;
+                }
+            }
+            if ( min < 0 ) {
+                break;
+            }
+            out.writeInt( cursors[min].get() );
+            heads[min] = null;
+        }
+        out.flush();
+        Manifest.sync( stream );
+        out.close();
+
+        while ( runs.size() > from ) {
+            runs.remove( from );
+            runNames.remove( from );
+        }
+        runs.add( Segment.map( file ));
+        runNames.add( name );
+    }
+
+    /** Skips the deleted docIDs at the cursor, and returns true if there is a docID left. */
+    private boolean advance( IntBuffer cursor ) {
+        while ( cursor.hasRemaining() ) {
+            if ( !deleted.get( cursor.get( cursor.position() ))) {
+                return true;
+            }
+            cursor.get();
+        }
+        return false;
+    }
+
+    /** The file name of a path without directories and extension. */
+    static String name( String path ) {
+        int from = path.lastIndexOf( '/' ) + 1;
+        int to = path.lastIndexOf( '.' );
+        return path.substring( from, to > from ? to : path.length() );
+    }
+}
@@ -30,6 +30,12 @@ public class DualIndex implements Index
         mega_index.insert(token, docID, offset);
     }
 
+    public void insertDocument(int docID, Map<String,int[]> positions)
+    {
+        bi_index.insertDocument(docID, positions);
+        mega_index.insertDocument(docID, positions);
+    }
+
     public PostingsList getPostings(String token)
     {
         return mega_index.getPostings(token);
@@ -40,11 +46,27 @@ public class DualIndex implements Index
         return null;
     }
     public PostingsList search(Query query, int queryType, int rankingType)
+    {
+        PostingsList ret = combined_search(query, queryType, rankingType);
+        if(ret != null)
+            ret.sortByScore();
+        return ret;
+    }
+
+    public PostingsList search(Query query, int queryType, int rankingType, int k)
+    {
+        return TopKCollector.top_k(combined_search(query, queryType, rankingType), k);
+    }
+
+    /**
+     *  Uses the biword index alone if it finds enough documents, and
+     *  otherwise combines it with the ordinary index. Not sorted.
+     */
+    private PostingsList combined_search(Query query, int queryType, int rankingType)
     {
         PostingsList bi_list = bi_index.search_wo_sort(query, queryType, rankingType);
-        if(bi_list != null && bi_list.list.size() > K_LIMIT)
+        if(bi_list != null && bi_list.size() > K_LIMIT)
         {
-            Collections.sort(bi_list.list);
             return bi_list;
         }
         PostingsList mega_list = mega_index.search_wo_sort(query, queryType, rankingType);
@@ -52,18 +74,15 @@ public class DualIndex implements Index
             return null;
         else if(bi_list == null)
         {
-            Collections.sort(mega_list.list);
             return mega_list;
         }
         else if(mega_list == null)
         {
-            Collections.sort(bi_list.list);
             return bi_list;
         }
         else
         {
             mega_list.merge_pl(bi_list, MEGA_WEIGHT);
-            Collections.sort(mega_list.list);
             return mega_list;
         }
     }
@@ -81,6 +100,16 @@ public class DualIndex implements Index
         return numberOfDocs;
     }
 
+    public String getDocumentPath(int docID)
+    {
+        return mega_index.getDocumentPath(docID);
+    }
+
+    public int getDocumentLength(int docID)
+    {
+        return mega_index.getDocumentLength(docID);
+    }
+
     public void addTerm(int docID, String token)
     {
         HashSet<String> tmp = terms.get(docID);
@@ -95,4 +124,10 @@ public class DualIndex implements Index
     public void setPagerank(HashMap<String, Double> new_pr)
     {
     }
+
+    /** The registry that hands out docIDs, shared with the ordinary index. */
+    public DocumentRegistry getRegistry()
+    {
+        return mega_index.getRegistry();
+    }
 }
@@ -13,6 +13,7 @@ package ir;
 import java.util.LinkedList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -21,7 +22,20 @@ import java.util.HashMap;
 public class HashedIndex implements Index {
 
     /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+    protected final Map<String,PostingsList> index;
+
+    /** Reused between intersection queries for the matching docIDs. */
+    private int[] matches = new int[0];
+
+
+    public HashedIndex() {
+        this(new HashMap<String,PostingsList>());
+    }
+
+    /** Creates an index kept in the given map. */
+    protected HashedIndex(Map<String,PostingsList> index) {
+        this.index = index;
+    }
 
 
     /**
@@ -41,6 +55,21 @@ public class HashedIndex implements Index {
     }
 
 
+    /**
+     *  Inserts the terms of a document with their positions.
+     */
+    public void insertDocument( int docID, Map<String,int[]> positions ) {
+        for(Map.Entry<String,int[]> e : positions.entrySet()) {
+            PostingsList current_list = index.get(e.getKey());
+            if(current_list == null) {
+                current_list = new PostingsList();
+                index.put(e.getKey(), current_list);
+            }
+            current_list.add(docID, e.getValue());
+        }
+    }
+
+
     /**
      *  Returns the postings for a specific term, or null
      *  if the term is not in the index.
@@ -73,30 +102,38 @@ public class HashedIndex implements Index {
                 }
                 Collections.sort(queue);
 
-                PostingsList result = queue.pollFirst();
-                while(queue.size() != 0) {
-                    result = PostingsList.intersect_query(result, queue.pollFirst());
-                } 
-                return result;
+                PostingsList[] lists = queue.toArray(new PostingsList[queue.size()]);
+                if(matches.length < lists[0].size())
+                    matches = new int[lists[0].size()];
+                int n = PostingsList.intersect_all(lists, matches);
+                return PostingsList.from_docIDs(matches, n);
             }
         } else if(queryType == Index.PHRASE_QUERY) {
             if(query.size() == 1) {
                 return index.get(query.terms.getFirst());
             } else {
-                PostingsList result = index.get(query.terms.pollFirst());
-                while(query.size() != 0) {
-                    PostingsList tmp = index.get(query.terms.pollFirst());
-                    if(tmp == null)
+                PostingsList[] lists = new PostingsList[query.size()];
+                for(int k = 0; k < lists.length; k++) {
+                    lists[k] = index.get(query.terms.get(k));
+                    if(lists[k] == null)
                         return null;
-                    result = PostingsList.phrase_query(result, tmp);
                 }
-                return result;
+                return PostingsList.phrase_all(lists);
             }
         }
         return null;
     }
 
 
+    /**
+     *  There is no ranked retrieval in a HashedIndex, so the whole
+     *  result is returned.
+     */
+    public PostingsList search( Query query, int queryType, int rankingType, int k ) {
+        return search(query, queryType, rankingType);
+    }
+
+
     /**
      *  No need for cleanup in a HashedIndex.
      */
@@ -108,6 +145,17 @@ public class HashedIndex implements Index {
         // Not implemented for HashedIndex.
         return 0;
     }
+
+    public String getDocumentPath(int docID)
+    {
+        return docIDs.get("" + docID);
+    }
+
+    public int getDocumentLength(int docID)
+    {
+        Integer length = docLengths.get("" + docID);
+        return length == null ? 0 : length;
+    }
     public void addTerm(int docID, String token)
     {
         // Not implemented for HashedIndex.
@@ -12,6 +12,8 @@ package ir;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public interface Index {
 
@@ -20,6 +22,7 @@ public interface Index {
     public static final int MEGA_INDEX = 1;
     public static final int BIWORD_INDEX = 2;
     public static final int DUAL_INDEX = 3;
+    public static final int CONCURRENT_HASHED_INDEX = 4;
 
     /* Query types */
     public static final int INTERSECTION_QUERY = 0;
@@ -33,17 +36,29 @@ public interface Index {
 
     public static final double IE_THRESHOLD = 4;
 
-    public HashMap<String, String> docIDs = new HashMap<String,String>();
-    public HashMap<String,Integer> docLengths = new HashMap<String,Integer>();
-    public HashMap<Integer, HashSet<String>> terms = new HashMap<Integer, HashSet<String>>();
+    /* Document metadata, shared by all indexes and safe to change from several threads. */
+    public Map<String, String> docIDs = new ConcurrentHashMap<String,String>();
+    public Map<String,Integer> docLengths = new ConcurrentHashMap<String,Integer>();
+    public Map<Integer, HashSet<String>> terms = new ConcurrentHashMap<Integer, HashSet<String>>();
 
     public boolean SPEED_UP = false;
     public void insert( String token, int docID, int offset );
+    /**
+     *  Inserts a whole document, given as the sorted positions of each of
+     *  its distinct terms. This does one lookup per term instead of one
+     *  per token.
+     */
+    public void insertDocument( int docID, Map<String,int[]> positions );
     public PostingsList getPostings( String token );
     public PostingsList search( Query query, int queryType, int rankingType );
+    public PostingsList search( Query query, int queryType, int rankingType, int k );
     public PostingsList search_wo_sort(Query query, int queryType, int rankingType);
     public void cleanup();
     public int getNumberOfDocs();
+    /** The path of a document, or null if it is unknown. */
+    public String getDocumentPath(int docID);
+    /** The number of tokens in a document. */
+    public int getDocumentLength(int docID);
     public void addTerm(int docID, String token);
     public void setPagerank(HashMap<String, Double> new_pr);
 }
@@ -10,18 +10,17 @@
 package ir;
 
 import java.io.File;
-import java.io.Reader;
-import java.io.FileReader;
-import java.io.StringReader;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
-import org.apache.pdfbox.cos.COSDocument;
-import org.apache.pdfbox.pdfparser.*;
-import org.apache.pdfbox.util.PDFTextStripper;
-import org.apache.pdfbox.pdmodel.PDDocument;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -33,7 +32,25 @@ public class Indexer {
     public Index index;
 
     /** The next docID to be generated. */
-    private int lastDocID = 0;
+    private final AtomicInteger lastDocID = new AtomicInteger();
+
+    /** Extracts the text of PDF files for all threads of this indexer. */
+    public final PDFExtractor pdfExtractor = new PDFExtractor();
+
+    /** Hands out docIDs based on file names, for indexes saved to disk. */
+    private DocumentRegistry registry = null;
+
+    /** Number of threads that read and tokenize files, see processFiles. */
+    public static int THREADS = 1;
+
+    /** Number of tokens a worker collects before adding them to the index. */
+    public static int BATCH_TOKENS = 1 << 16;
+
+    /** The charset text files are decoded with. */
+    public static Charset CHARSET = StandardCharsets.UTF_8;
+
+    /** Reads the files when there are no worker threads. */
+    private DocumentReader reader = null;
 
 
     /* ----------------------------------------------- */
@@ -41,12 +58,17 @@ public class Indexer {
 
     /** Generates a new document identifier as an integer. */
     private int generateDocID() {
-        return lastDocID++;
+        return lastDocID.getAndIncrement();
     }
 
-    /** Generates a new document identifier based on the file name. */
+    /**
+     *  Generates a new document identifier based on the file name, so
+     *  that docIDs stay dense. A file that is indexed again into a
+     *  MegaIndex gets a new docID, and its old docID is deleted, see
+     *  addDocument.
+     */
     private int generateDocID( String s ) {
-        return s.hashCode();
+        return registry.register( s );
     }
 
 
@@ -54,15 +76,20 @@ public class Indexer {
 
 
     /**
-     *  Initializes the index as a HashedIndex.
+     *  Initializes the index as a HashedIndex, or another index kept in
+     *  memory.
      */
     public Indexer(int type) {
         if(type == Index.HASHED_INDEX)
             index = new HashedIndex();
+        else if(type == Index.CONCURRENT_HASHED_INDEX)
+            index = new ConcurrentHashedIndex();
         else if(type == Index.BIWORD_INDEX)
             index = new BiwordIndex();
-        else if(type == Index.DUAL_INDEX)
+        else if(type == Index.DUAL_INDEX) {
             index = new DualIndex();
+            registry = ((DualIndex)index).getRegistry();
+        }
     }
 
     /** 
@@ -70,6 +97,7 @@ public class Indexer {
      */
     public Indexer( LinkedList<String> indexfiles ) {
         index = new MegaIndex( indexfiles );
+        registry = ((MegaIndex)index).getRegistry();
     }
 
 
@@ -78,9 +106,17 @@ public class Indexer {
 
     /**
      *  Tokenizes and indexes the file @code{f}. If @code{f} is a directory,
-     *  all its files and subdirectories are recursively processed.
+     *  all its files and subdirectories are recursively processed, by
+     *  THREADS threads if it is more than one.
      */
     public void processFiles( File f ) {
+        if ( THREADS > 1 ) {
+            processFilesInParallel( f );
+            return;
+        }
+        if ( reader == null ) {
+            reader = new DocumentReader( CHARSET, pdfExtractor );
+        }
         // do not try to index fs that cannot be read
         if ( f.canRead() ) {
             if ( f.isDirectory() ) {
@@ -92,78 +128,263 @@ public class Indexer {
                     }
                 }
             } else {
-                System.err.println( "Indexing " + f.getPath() );
-                // First register the document and get a docID
-                int docID;
-                if ( index instanceof HashedIndex  || index instanceof BiwordIndex) {
-                    // For HashedIndex, use integers.
-                    docID = generateDocID();
+                try {
+                    addDocument( f, readPositions( f, reader ));
                 }
-                else {
-                    // For MegaIndex, use hash codes based on file names.
-                    try {
-                        docID = generateDocID( f.getCanonicalPath() );
-                    }
-                    catch( IOException e ) {
-                        docID = generateDocID( f.getPath() );
-                    }
+                catch ( PDFExtractor.Skipped e ) {
+                    System.err.println( e.getMessage() );
                 }
-                index.docIDs.put( "" + docID, f.getPath() );
-                try {
-                    //  Read the first few bytes of the file to see if it is 
-                    // likely to be a PDF 
-                    Reader reader = new FileReader( f );
-                    char[] buf = new char[4];
-                    reader.read( buf, 0, 4 );
-                    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-                        // We assume this is a PDF file
-                        try {
-                            String contents = extractPDFContents( f );
-                            reader = new StringReader( contents );
-                        }
-                        catch ( IOException e ) {
-                            // Perhaps it wasn't a PDF file after all
-                            reader = new FileReader( f );
+                catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Indexes the files under @code{f} with THREADS worker threads. This
+     *  thread walks the directory tree and puts the files in a queue. Each
+     *  worker takes files from the queue, reads and tokenizes them, and
+     *  collects the documents in a batch of its own. A full batch is
+     *  added to the index in one go, holding the lock of the indexer,
+     *  which also guards the docIDs and the document metadata. Documents
+     *  get their docIDs when they are added, so the docIDs of a MegaIndex
+     *  stay in increasing order.
+     */
+    private void processFilesInParallel( File f ) {
+        final File end = new File( "" );
+        final BlockingQueue<File> queue = new ArrayBlockingQueue<File>( 64 * THREADS );
+        Thread[] workers = new Thread[THREADS];
+        for ( int i=0; i<workers.length; i++ ) {
+            workers[i] = new Thread( "indexer " + i ) {
+                public void run() {
+                    DocumentReader reader = new DocumentReader( CHARSET, pdfExtractor );
+                    // A ConcurrentHashedIndex gets the postings of each worker at the end.
+                    HashedIndex partial = index instanceof ConcurrentHashedIndex ? new HashedIndex() : null;
+                    ArrayList<File> files = new ArrayList<File>();
+                    ArrayList<HashMap<String,int[]>> documents = new ArrayList<HashMap<String,int[]>>();
+                    int tokens = 0;
+                    try {
+                        for ( File file = queue.take(); file != end; file = queue.take() ) {
+                            try {
+                                HashMap<String,int[]> document = readPositions( file, reader );
+                                files.add( file );
+                                documents.add( document );
+                                tokens += length( document );
+                            }
+                            catch ( PDFExtractor.Skipped e ) {
+                                System.err.println( e.getMessage() );
+                            }
+                            catch ( IOException e ) {
+                                e.printStackTrace();
+                            }
+                            if ( tokens >= BATCH_TOKENS ) {
+                                addDocuments( files, documents, partial );
+                                tokens = 0;
+                            }
                         }
                     }
-                    else {
-                        // We hope this is ordinary text
-                        reader = new FileReader( f );
+                    catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
                     }
-                    SimpleTokenizer tok = new SimpleTokenizer( reader );
-                    int offset = 0;
-                    while ( tok.hasMoreTokens() ) {
-                        String token = tok.nextToken();
-                        insertIntoIndex( docID, token, offset++ );
-                        insertToTerms(docID, token);
+                    addDocuments( files, documents, partial );
+                    if ( partial != null ) {
+                        ((ConcurrentHashedIndex) index).addAll( partial );
                     }
-                    index.docLengths.put( "" + docID, offset );
-                    reader.close();
                 }
-                catch ( IOException e ) {
-                    e.printStackTrace();
+            };
+            workers[i].start();
+        }
+        try {
+            enqueueFiles( f, queue );
+            for ( int i=0; i<workers.length; i++ ) {
+                queue.put( end );
+            }
+            for ( Thread worker : workers ) {
+                worker.join();
+            }
+        }
+        catch ( InterruptedException e ) {
+            for ( Thread worker : workers ) {
+                worker.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /** Puts the readable files under @code{f} in the queue. */
+    private static void enqueueFiles( File f, BlockingQueue<File> queue ) throws InterruptedException {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        enqueueFiles( new File( f, fs[i] ), queue );
+                    }
                 }
+            } else {
+                queue.put( f );
             }
         }
     }
 
 
-    /* ----------------------------------------------- */
+    /**
+     *  Adds a batch of tokenized documents to the index, and empties the
+     *  batch. If the worker has a partial index of its own, the documents
+     *  are added to that without the lock.
+     */
+    private void addDocuments( ArrayList<File> files, ArrayList<HashMap<String,int[]>> documents, HashedIndex partial ) {
+        if ( partial != null ) {
+            for ( int i=0; i<files.size(); i++ ) {
+                addDocumentConcurrently( files.get( i ), documents.get( i ), partial );
+            }
+        }
+        else {
+            synchronized ( this ) {
+                for ( int i=0; i<files.size(); i++ ) {
+                    addDocument( files.get( i ), documents.get( i ));
+                }
+            }
+        }
+        files.clear();
+        documents.clear();
+    }
+
+
+    /**
+     *  Adds a document to the partial index of a worker, for a
+     *  ConcurrentHashedIndex. Only the docIDs need to be handed out
+     *  atomically, and the metadata maps take concurrent changes. The
+     *  docIDs a worker gets only increase, so its postings lists are
+     *  only appended to.
+     */
+    private void addDocumentConcurrently( File f, HashMap<String,int[]> positions, HashedIndex partial ) {
+        int docID = generateDocID();
+        Index.docIDs.put( "" + docID, f.getPath() );
+        partial.insertDocument( docID, positions );
+        Index.docLengths.put( "" + docID, length( positions ));
+    }
+
+
+    /**
+     *  Gives the file @code{f} a docID and adds the positions of its
+     *  tokens to the index.
+     */
+    private synchronized void addDocument( File f, HashMap<String,int[]> positions ) {
+        // First register the document and get a docID
+        int docID;
+        if ( registry == null ) {
+            // For HashedIndex, use integers.
+            docID = generateDocID();
+        }
+        else {
+            // For MegaIndex, register the file name. A file that
+            // is already in the index is replaced by a new document.
+            String path = documentPath( f );
+            if ( index instanceof MegaIndex ) {
+                ((MegaIndex) index).delete( path );
+            }
+            docID = generateDocID( path );
+        }
+        Index.docIDs.put( "" + docID, f.getPath() );
+        index.insertDocument( docID, positions );
+        for ( String token : positions.keySet() ) {
+            insertToTerms( docID, token );
+        }
+        int length = length( positions );
+        Index.docLengths.put( "" + docID, length );
+        if ( registry != null ) {
+            registry.setLength( docID, length );
+        }
+    }
+
+
+    /** A growing list of the positions of one term in a document. */
+    private static class Positions {
+        int[] offsets = new int[4];
+        int size = 0;
+    }
+
+    /**
+     *  Reads the file @code{f} with @code{reader} and returns the
+     *  positions of each distinct token, so the index is looked up once
+     *  per term instead of once per token. The table is built while the
+     *  file is tokenized, so the tokens themselves are not kept. This may
+     *  be called by several threads at once, each with its own reader.
+     */
+    private HashMap<String,int[]> readPositions( File f, DocumentReader reader ) throws IOException {
+        System.err.println( "Indexing " + f.getPath() );
+        SimpleTokenizer tok = reader.open( f );
+        HashMap<String,Positions> table = new HashMap<String,Positions>();
+        try {
+            for ( int offset=0; tok.hasMoreTokens(); offset++ ) {
+                String token = tok.nextToken();
+                Positions p = table.get( token );
+                if ( p == null ) {
+                    p = new Positions();
+                    table.put( token, p );
+                }
+                if ( p.size == p.offsets.length ) {
+                    p.offsets = Arrays.copyOf( p.offsets, 2 * p.size );
+                }
+                p.offsets[p.size++] = offset;
+            }
+        }
+        finally {
+            tok.close();
+        }
+        HashMap<String,int[]> positions = new HashMap<String,int[]>( 2 * table.size() );
+        for ( Map.Entry<String,Positions> e : table.entrySet() ) {
+            Positions p = e.getValue();
+            positions.put( e.getKey(), p.size == p.offsets.length ? p.offsets : Arrays.copyOf( p.offsets, p.size ));
+        }
+        return positions;
+    }
+
+
+    /** The number of tokens in a document, given the positions of its tokens. */
+    private static int length( Map<String,int[]> positions ) {
+        int length = 0;
+        for ( int[] offsets : positions.values() ) {
+            length += offsets.length;
+        }
+        return length;
+    }
 
 
     /**
-     *  Extracts the textual contents from a PDF file as one long string.
+     *  Removes the file @code{f} from the index. If @code{f} is a
+     *  directory, all its files and subdirectories are recursively
+     *  removed. Only a MegaIndex can remove documents.
      */
-    public String extractPDFContents( File f ) throws IOException {
-        FileInputStream fi = new FileInputStream( f );
-        PDFParser parser = new PDFParser( fi );   
-        parser.parse();   
-        fi.close();
-        COSDocument cd = parser.getDocument();   
-        PDFTextStripper stripper = new PDFTextStripper();   
-        String result = stripper.getText( new PDDocument( cd ));  
-        cd.close();
-        return result;
+    public void removeFiles( File f ) {
+        if ( !(index instanceof MegaIndex) ) {
+            System.err.println( "Only a MegaIndex can remove documents" );
+            return;
+        }
+        String[] fs = f.isDirectory() ? f.list() : null;
+        if ( fs != null ) {
+            for ( int i=0; i<fs.length; i++ ) {
+                removeFiles( new File( f, fs[i] ));
+            }
+        }
+        else if ( ((MegaIndex) index).delete( documentPath( f ))) {
+            System.err.println( "Removed " + f.getPath() );
+        }
+    }
+
+
+    /** The path a file is registered by. The file does not have to exist. */
+    private static String documentPath( File f ) {
+        try {
+            return f.getCanonicalPath();
+        }
+        catch( IOException e ) {
+            return f.getPath();
+        }
     }
 
 
@@ -0,0 +1,176 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Properties;
+
+/**
+ *   The committed state of a MegaIndex: which segments and which
+ *   document files make up the index.
+ *
+ *   A commit first writes and fsyncs all new files, and then replaces
+ *   name.manifest with an atomic rename. The files of the previous
+ *   commit are only deleted after that. The document files are only
+ *   appended to, after the documents that the manifest counts. A crash
+ *   at any point therefore leaves either the old or the new manifest,
+ *   and every file it names is complete.
+ */
+public class Manifest {
+
+    public static final String SUFFIX = ".manifest";
+
+    /** Number of commits made so far. */
+    public int generation = 0;
+
+    /** The next free number for naming index files. */
+    public int next = 0;
+
+    /**
+     *  The name of the files the documents are appended to, and the
+     *  number of documents in them that are committed. See
+     *  DocumentRegistry.
+     */
+    public String documents = null;
+    public int documentCount = 0;
+
+    /** The names of the runs that find the documents by path. */
+    public ArrayList<String> runs = new ArrayList<String>();
+
+    /** The name of the tombstones of deleted documents, or null if there are none. */
+    public String deleted = null;
+
+    /** The names of the segments, in docID order. */
+    public ArrayList<String> segments = new ArrayList<String>();
+
+    /** true if every docID in segment k is smaller than those in segment k+1. */
+    public boolean ordered = true;
+
+
+    /** Reads the manifest of the index called name, or returns null if it has none. */
+    public static Manifest read( String dir, String name ) throws IOException {
+        File f = new File( dir, name + SUFFIX );
+        if ( !f.exists() ) {
+            return null;
+        }
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream( f );
+        try {
+            p.load( in );
+        }
+        finally {
+            in.close();
+        }
+        Manifest m = new Manifest();
+        m.generation = Integer.parseInt( p.getProperty( "generation" ));
+        m.next = Integer.parseInt( p.getProperty( "next" ));
+        m.documents = p.getProperty( "documents" );
+        m.documentCount = Integer.parseInt( p.getProperty( "documentCount" ));
+        m.deleted = p.getProperty( "deleted" );
+        if ( m.deleted.length() == 0 ) {
+            m.deleted = null;
+        }
+        m.ordered = Boolean.parseBoolean( p.getProperty( "ordered" ));
+        split( p.getProperty( "segments" ), m.segments );
+        split( p.getProperty( "runs" ), m.runs );
+        return m;
+    }
+
+
+    /** Atomically replaces the manifest of the index called name with this one. */
+    public void write( String dir, String name ) throws IOException {
+        Properties p = new Properties();
+        p.setProperty( "generation", "" + generation );
+        p.setProperty( "next", "" + next );
+        p.setProperty( "documents", documents );
+        p.setProperty( "documentCount", "" + documentCount );
+        p.setProperty( "deleted", deleted == null ? "" : deleted );
+        p.setProperty( "ordered", "" + ordered );
+        p.setProperty( "segments", join( segments ));
+        p.setProperty( "runs", join( runs ));
+
+        File tmp = new File( dir, name + SUFFIX + ".tmp" );
+        FileOutputStream out = new FileOutputStream( tmp );
+        try {
+            p.store( out, "MegaIndex " + name );
+            sync( out );
+        }
+        finally {
+            out.close();
+        }
+        Files.move( tmp.toPath(), new File( dir, name + SUFFIX ).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        syncDirectory( dir );
+    }
+
+
+    /** The names of all segment and document files that this manifest refers to. */
+    public HashSet<String> files() {
+        HashSet<String> files = new HashSet<String>( segments );
+        files.add( documents );
+        files.addAll( runs );
+        if ( deleted != null ) {
+            files.add( deleted );
+        }
+        return files;
+    }
+
+
+    private static void split( String s, ArrayList<String> names ) {
+        for ( String name : s.split( "," )) {
+            if ( name.length() > 0 ) {
+                names.add( name );
+            }
+        }
+    }
+
+    private static String join( ArrayList<String> names ) {
+        StringBuilder sb = new StringBuilder();
+        for ( String s : names ) {
+            if ( sb.length() > 0 ) {
+                sb.append( ',' );
+            }
+            sb.append( s );
+        }
+        return sb.toString();
+    }
+
+
+    /** Forces everything written to out onto the disk. */
+    static void sync( FileOutputStream out ) throws IOException {
+        out.flush();
+        out.getChannel().force( true );
+    }
+
+
+    /**
+     *  Forces the directory entries of dir onto the disk, so that renamed
+     *  files survive a crash. Not every platform can open directories,
+     *  and there it is left to the file system.
+     */
+    static void syncDirectory( String dir ) {
+        try {
+            FileChannel channel = FileChannel.open( new File( dir ).toPath(), StandardOpenOption.READ );
+            try {
+                channel.force( true );
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch ( IOException e ) {
+        }
+    }
+}
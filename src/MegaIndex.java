@@ -9,35 +9,166 @@
 
 package ir;
 
-import com.larvalabs.megamap.MegaMapManager;
-import com.larvalabs.megamap.MegaMap;
-import com.larvalabs.megamap.MegaMapException;
-
 import pagerank.PageRank;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 public class MegaIndex implements Index {
 
     /**
-     *  The index as a hash map that can also extend to secondary
-     *	memory if necessary.
+     *  The postings of the documents inserted since the last spill.
+     *  When the buffer grows beyond MEMORY_BUDGET it is written to disk
+     *  as a new segment (single-pass in-memory indexing, SPIMI).
      */
-    private MegaMap index;
+    private HashMap<String,PostingsList> buffer = new HashMap<String,PostingsList>();
+
+
+    /** Estimated number of bytes used by the buffer. */
+    private long bufferBytes = 0;
 
 
     /**
-     *  The MegaMapManager is the user's entry point for creating and
-     *  saving MegaMaps on disk.
+     *  Estimated number of bytes the buffer may use before it is spilled
+     *  to disk. A spill only happens between two documents.
      */
-    private MegaMapManager manager;
+    public static long MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+
+    /** Estimated sizes of a new term, posting and offset in the buffer. */
+    private static final int TERM_BYTES = 200;
+    private static final int POSTING_BYTES = 24;
+    private static final int OFFSET_BYTES = 8;
+
+
+    /**
+     *  The segments of the index in docID order, and the names of their
+     *  files. They are the committed segments followed by the ones
+     *  spilled from the buffer since the last commit.
+     */
+    private ArrayList<Segment> segments = new ArrayList<Segment>();
+    private ArrayList<String> segmentNames = new ArrayList<String>();
+
+
+    /** The largest docID in the segments and the buffer, and the last one inserted. */
+    private int maxDocID = -1;
+    private int lastDocID = -1;
+
+
+    /** true as long as every inserted document has a larger docID than those before it. */
+    private boolean ordered = true;
+
+
+    /** The name of the index, and of its manifest. */
+    private String name;
+
+
+    /** The last committed state of the index, or null if it has never been committed. */
+    private Manifest manifest = null;
+
+
+    /** The next free number for naming segment and document files. */
+    private int nextFile = 0;
+
+
+    /** Files that are no longer part of the index once the next commit is made. */
+    private ArrayList<String> obsolete = new ArrayList<String>();
+
+
+    /** true if anything was inserted since the last commit. */
+    private boolean changed = false;
+
+
+    /**
+     *  Milliseconds between the checkpoints made in the background while
+     *  indexing, or 0 for none.
+     */
+    public static long CHECKPOINT_INTERVAL = 5 * 60 * 1000;
+
+
+    /** Set by the checkpoint timer, the checkpoint is started at the next document. */
+    private volatile boolean checkpointDue = false;
+    private Timer checkpointTimer = null;
+
+
+    /** Writes checkpoints and merges segments in the background, one at a time. */
+    private ExecutorService background = null;
+
+
+    /**
+     *  The checkpoint being written in the background, the buffer it
+     *  writes, the name of its segment and the documents it writes.
+     */
+    private Future<Manifest> checkpoint = null;
+    private HashMap<String,PostingsList> frozen = null;
+    private String frozenName = null;
+    private DocumentRegistry frozenDocuments = null;
+
+
+    /**
+     *  The number of segments of about the same size that are merged
+     *  into one larger segment. Segments are divided into size tiers
+     *  that grow by this factor, starting at MIN_MERGE_BYTES.
+     */
+    public static int MERGE_FACTOR = 10;
+    public static long MIN_MERGE_BYTES = 1 << 20;
+
+
+    /**
+     *  The merge running in the background, the segments it merges
+     *  and the name of the merged segment.
+     */
+    private Future<Integer> merge = null;
+    private ArrayList<String> mergeRun = null;
+    private String mergedName = null;
+
+
+    /** The size in bytes and the eviction policy of the postings cache. */
+    public static long CACHE_BYTES = 64 << 20;
+    public static int CACHE_POLICY = PostingsCache.LRU;
+
+
+    /** The decoded postings of the segments of the most used terms. */
+    private PostingsCache cache = new PostingsCache( CACHE_BYTES, CACHE_POLICY );
+
+
+    /**
+     *  Number of terms that are decoded into the cache in the background
+     *  when an index is opened, or 0 for none. They are the terms with
+     *  the highest document frequencies, or the most frequent terms of
+     *  the queries in WARM_UP_LOG (one query per line) if it is set.
+     */
+    public static int WARM_UP_TERMS = 1000;
+    public static String WARM_UP_LOG = null;
+
+
+    /** Counts the segments added, a warm-up stops when they change. */
+    private volatile int segmentsVersion = 0;
 
 
     /** The directory where to place index files on disk. */
@@ -49,81 +180,105 @@ public class MegaIndex implements Index {
 
     public int numberOfDocs = -2;
 
-    private HashMap<String, Double> pageranks = new HashMap<String, Double>();
+    /**
+     *  The PageRank of each document by file name. An index that is
+     *  opened from disk has the ranks of its documents in the registry,
+     *  and only computes these when documents without a rank are added.
+     */
+    private HashMap<String, Double> pageranks = null;
+
+    /** Reused between intersection queries for the matching docIDs. */
+    private int[] matches = new int[0];
+
+    /** Reused between ranked queries for the document scores. */
+    private ScoreAccumulator accumulator = null;
+
+    /** The docIDs, paths and lengths of the documents in the index. */
+    private DocumentRegistry registry = new DocumentRegistry();
+
     /**
      *  Create a new index and invent a name for it.
      */
     public MegaIndex() {
-        try {
-            manager = MegaMapManager.getMegaMapManager();
-            index = manager.createMegaMap( generateFilename(), path, true, false );
+        name = generateFilename();
+        System.err.println("Creating PageRank!");
+        PageRank pr = new PageRank(pathToLinks);
+        pageranks = pr.getPagerank();
+        System.err.println("Done creating PageRank!");
+    }
+
+    /**
+     *  Create a MegaIndex, possibly from a list of smaller
+     *  indexes.
+     */
+    public MegaIndex( LinkedList<String> indexfiles ) {
+        if ( indexfiles.size() == 0 ) {
+            // No index file names specified. Construct a new index and
+            // invent a name for it.
+            name = generateFilename();
             System.err.println("Creating PageRank!");
             PageRank pr = new PageRank(pathToLinks);
             pageranks = pr.getPagerank();
             System.err.println("Done creating PageRank!");
         }
-        catch ( Exception e ) {
-            e.printStackTrace();
+        else {
+            open( indexfiles );
+            if ( WARM_UP_TERMS > 0 ) {
+                warmUp( WARM_UP_TERMS, WARM_UP_LOG );
+            }
         }
     }
 
+    public MegaIndex( LinkedList<String> indexfiles, int input) {
+        if ( indexfiles.size() == 0 ) {
+            // No index file names specified. Construct a new index and
+            // invent a name for it.
+            name = generateFilename();
+        }
+        else {
+            open( indexfiles );
+        }
+    }
+
+
     /**
-     *  Create a MegaIndex, possibly from a list of smaller
-     *  indexes.
+     *  Opens the specified index, or merges the specified indexes into
+     *  a new one.
      */
-    public MegaIndex( LinkedList<String> indexfiles ) {
+    private void open( LinkedList<String> indexfiles ) {
         try {
-            manager = MegaMapManager.getMegaMapManager();
-            if ( indexfiles.size() == 0 ) {
-                // No index file names specified. Construct a new index and
-                // invent a name for it.
-                index = manager.createMegaMap( generateFilename(), path, true, false );
-                System.err.println("Creating PageRank!");
-                PageRank pr = new PageRank(pathToLinks);
-                pageranks = pr.getPagerank();
-                System.err.println("Done creating PageRank!");
-
-            }
-            else if ( indexfiles.size() == 1 ) {
+            if ( indexfiles.size() == 1 ) {
                 // Read the specified index from file
-                index = manager.createMegaMap( indexfiles.get(0), path, true, false );
-                HashMap<String,String> m = (HashMap<String,String>)index.get( "..docIDs" );
-                if ( m == null ) {
-                    System.err.println( "Couldn't retrieve the associations between docIDs and document names" );
-                }
-                else {
-                    docIDs.putAll( m );
-                }
-                HashMap<String,Integer> n = (HashMap<String, Integer>)index.get( "..docLengths" );
-                if( n == null )
-                {
-                    System.err.println( "Could not retrieve the length of the documents." );
-                }
-                else
-                {
-                    docLengths.putAll(n);
-                }
-                HashMap<String,Double> k = (HashMap<String, Double>)index.get( "..pageranks" );
-                if( k == null )
-                {
-                    System.err.println( "Could not retrieve the pageranks of the documents." );
-                }
-                else
-                {
-                    pageranks.putAll(k);
+                name = indexfiles.get(0);
+                manifest = readManifest( name );
+                // The last committed state, whatever happened after it.
+                for ( String s : manifest.segments ) {
+                    segments.add( new Segment( path, s ));
+                    segmentNames.add( s );
                 }
+                registry = readDocumentInfo( manifest );
+                nextFile = manifest.next;
+                ordered = manifest.ordered;
+                deleteUncommittedFiles();
+                maxDocID = registry.size() - 1;
             }
             else {
                 // Merge the specified index files into a large index.
-                MegaMap[] indexesToBeMerged = new MegaMap[indexfiles.size()];
-                for ( int k=0; k<indexfiles.size(); k++ ) {
-                    System.err.println( indexfiles.get(k) );
-                    indexesToBeMerged[k] = manager.createMegaMap( indexfiles.get(k), path, true, false );
-                }
-                index = merge( indexesToBeMerged );
-                for ( int k=0; k<indexfiles.size(); k++ ) {
-                    manager.removeMegaMap( indexfiles.get(k) );
+                name = generateFilename();
+                ArrayList<Segment> indexesToBeMerged = new ArrayList<Segment>();
+                ArrayList<int[]> docMaps = new ArrayList<int[]>();
+                for ( String indexName : indexfiles ) {
+                    System.err.println( indexName );
+                    Manifest m = readManifest( indexName );
+                    int[] docMap = registry.add_all( readDocumentInfo( m ));
+                    // All segments of an index map their docIDs the same way.
+                    for ( String s : m.segments ) {
+                        indexesToBeMerged.add( new Segment( path, s ));
+                        docMaps.add( docMap );
+                    }
                 }
+                merge( indexesToBeMerged.toArray( new Segment[indexesToBeMerged.size()] ),
+                       docMaps.toArray( new int[docMaps.size()][] ));
             }
         }
         catch ( Exception e ) {
@@ -131,326 +286,1028 @@ public class MegaIndex implements Index {
         }
     }
 
-    public MegaIndex( LinkedList<String> indexfiles, int input) {
+
+    /** Reads the manifest of the index called indexName, which must have one. */
+    private static Manifest readManifest( String indexName ) throws IOException {
+        Manifest m = Manifest.read( path, indexName );
+        if ( m == null ) {
+            throw new IOException( "There is no index called " + indexName + " in " + path +
+                                   ", it has no " + indexName + Manifest.SUFFIX );
+        }
+        return m;
+    }
+
+
+    /**
+     *  Opens the memory-mapped document files that the manifest m has
+     *  committed.
+     */
+    private DocumentRegistry readDocumentInfo( Manifest m ) throws IOException {
+        if ( !DocumentRegistry.exists( path, m.documents )) {
+            System.err.println( "Couldn't retrieve the associations between docIDs and document names" );
+            return new DocumentRegistry();
+        }
+        return DocumentRegistry.open( path, m );
+    }
+
+
+    /**
+     *  Generates unique names for index files
+     */
+    String generateFilename() {
+        String s = "index_" + Math.abs((new java.util.Date()).hashCode());
+        System.err.println( s );
+        return s;
+    }
+
+
+    /** Returns a new name for segment or document files. */
+    private String newFileName() {
+        return name + "_" + nextFile++;
+    }
+
+
+    /**
+     *  Returns a new name for the run and the tombstones that a commit
+     *  writes. The files the documents are appended to are named first,
+     *  if they have no name yet.
+     */
+    private String newDocumentsName() {
+        if ( !registry.hasFiles() ) {
+            registry.setFiles( newFileName() );
+        }
+        return newFileName();
+    }
+
+
+    /**
+     *   Commits the index with its segments as they are, and finishes
+     *   the merges the merge policy has started. Anything inserted since
+     *   the last commit() is lost if the JVM terminates without calling
+     *   this method or commit().
+     */
+    public void cleanup() {
         try {
-            manager = MegaMapManager.getMegaMapManager();
-            if ( indexfiles.size() == 0 ) {
-                // No index file names specified. Construct a new index and
-                // invent a name for it.
-                index = manager.createMegaMap( generateFilename(), path, true, false );
+            if ( checkpointTimer != null ) {
+                checkpointTimer.cancel();
+                checkpointTimer = null;
             }
-            else if ( indexfiles.size() == 1 ) {
-                // Read the specified index from file
-                index = manager.createMegaMap( indexfiles.get(0), path, true, false );
-                HashMap<String,String> m = (HashMap<String,String>)index.get( "..docIDs" );
-                if ( m == null ) {
-                    System.err.println( "Couldn't retrieve the associations between docIDs and document names" );
+            System.err.println( cache );
+            finishCheckpoint( true );
+            finishMerge( true );
+            if ( changed || segments.isEmpty() || manifest == null ) {
+                if ( !buffer.isEmpty() || segments.isEmpty() ) {
+                    spill();
                 }
-                else {
-                    docIDs.putAll( m );
-                }
-                HashMap<String,Integer> n = (HashMap<String, Integer>)index.get( "..docLengths" );
-                if( n == null )
-                {
-                    System.err.println( "Could not retrieve the length of the documents." );
+                commit();
+            }
+            while ( merge != null ) {
+                // A merge would be lost when the background thread dies.
+                finishMerge( true );
+                commit();
+            }
+            if ( background != null ) {
+                background.shutdown();
+            }
+        }
+        catch ( Exception e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     *  Makes everything inserted so far durable. The buffer is written
+     *  to a new segment, the document files are written, and the new
+     *  set of files is committed by atomically replacing the manifest.
+     *  If the JVM crashes, the index is opened again in the state of
+     *  the last commit.
+     */
+    public void commit() throws IOException {
+        finishCheckpoint( true );
+        if ( !buffer.isEmpty() ) {
+            spill();
+        }
+        if ( !registry.hasPageranks() ) {
+            registry.setPageranks( pageranks() );
+        }
+        writeManifest( registry, newDocumentsName(), new ArrayList<String>( segmentNames ), nextFile, ordered );
+        changed = false;
+        deleteObsoleteFiles();
+        startMerge();
+    }
+
+
+    /**
+     *  Appends the new documents to the document files, and then writes
+     *  the manifest that makes them and the segments the committed state
+     *  of the index. May be called from the checkpoint thread.
+     */
+    private Manifest writeManifest( DocumentRegistry documents, String documentsName, ArrayList<String> names,
+                                    int next, boolean ordered ) throws IOException {
+        Manifest m = new Manifest();
+        documents.write( path, documentsName, m );
+        m.segments = names;
+        m.ordered = ordered;
+        m.next = next;
+        synchronized ( this ) {
+            m.generation = manifest == null ? 1 : manifest.generation + 1;
+            m.write( path, name );
+            if ( manifest != null ) {
+                HashSet<String> files = m.files();
+                for ( String s : manifest.files() ) {
+                    if ( !files.contains( s )) {
+                        obsolete.add( s );
+                    }
                 }
-                else
-                {
-                    docLengths.putAll(n);
+            }
+            manifest = m;
+        }
+        return m;
+    }
+
+
+    /**
+     *  Starts a checkpoint: the buffer is frozen and written to a new
+     *  segment in the background, and then committed together with the
+     *  documents inserted so far. Inserting goes on in a new buffer.
+     */
+    private void startCheckpoint( int docID ) {
+        if ( checkpoint != null ) {
+            return;
+        }
+        if ( !registry.hasPageranks() ) {
+            registry.setPageranks( pageranks() );
+        }
+        final String documentsName = newDocumentsName();
+        // The document docID has just started, it is not part of the checkpoint.
+        final DocumentRegistry documents = registry.snapshot( docID == registry.size() - 1 ? docID : registry.size() );
+        frozenDocuments = documents;
+        final HashMap<String,PostingsList> toWrite = buffer;
+        final ArrayList<String> names = new ArrayList<String>( segmentNames );
+        final boolean isOrdered = ordered;
+        frozen = buffer;
+        frozenName = toWrite.isEmpty() ? null : newFileName();
+        if ( frozenName != null ) {
+            names.add( frozenName );
+        }
+        final String segmentName = frozenName;
+        final int next = nextFile;
+        buffer = new HashMap<String,PostingsList>();
+        bufferBytes = 0;
+        checkpoint = background().submit( new Callable<Manifest>() {
+            public Manifest call() throws IOException {
+                long startTime = System.currentTimeMillis();
+                if ( segmentName != null ) {
+                    writeBuffer( toWrite, segmentName );
                 }
-                HashMap<String,Double> k = (HashMap<String, Double>)index.get( "..pageranks" );
-                if( k == null )
-                {
-                    System.err.println( "Could not retrieve the pageranks of the documents." );
+                Manifest m = writeManifest( documents, documentsName, names, next, isOrdered );
+                System.err.println( "Checkpoint " + m.generation + " of " + name + " in " +
+                                    (System.currentTimeMillis() - startTime) + " ms" );
+                return m;
+            }
+        });
+    }
+
+
+    /**
+     *  Opens the segment written by the checkpoint in the background, if
+     *  it is done or if wait is true.
+     */
+    private void finishCheckpoint( boolean wait ) {
+        if ( checkpoint == null || (!wait && !checkpoint.isDone()) ) {
+            return;
+        }
+        try {
+            checkpoint.get();
+            if ( frozenName != null ) {
+                addSegment( frozenName );
+            }
+            registry.rebase( frozenDocuments );
+            deleteObsoleteFiles();
+        }
+        catch ( Exception e ) {
+            // The checkpoint failed, keep its postings in memory.
+            System.err.println( "Checkpoint failed" );
+            e.printStackTrace();
+            for ( Map.Entry<String,PostingsList> entry : buffer.entrySet() ) {
+                PostingsList pl = frozen.get( entry.getKey() );
+                if ( pl == null ) {
+                    frozen.put( entry.getKey(), entry.getValue() );
                 }
-                else
-                {
-                    pageranks.putAll(k);
+                else {
+                    pl.merge_pl( entry.getValue() );
                 }
             }
-            else {
-                // Merge the specified index files into a large index.
-                MegaMap[] indexesToBeMerged = new MegaMap[indexfiles.size()];
-                for ( int k=0; k<indexfiles.size(); k++ ) {
-                    System.err.println( indexfiles.get(k) );
-                    indexesToBeMerged[k] = manager.createMegaMap( indexfiles.get(k), path, true, false );
+            buffer = frozen;
+            changed = true;
+        }
+        checkpoint = null;
+        frozen = null;
+        frozenName = null;
+        frozenDocuments = null;
+    }
+
+
+    /** The thread that writes checkpoints and merges segments. */
+    private ExecutorService background() {
+        if ( background == null ) {
+            background = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "background " + name );
+                    t.setDaemon( true );
+                    return t;
                 }
-                index = merge( indexesToBeMerged );
-                for ( int k=0; k<indexfiles.size(); k++ ) {
-                    manager.removeMegaMap( indexfiles.get(k) );
+            });
+        }
+        return background;
+    }
+
+
+    /** The size tier of a segment, see MERGE_FACTOR. */
+    private static int tier( Segment segment ) {
+        int tier = 0;
+        for ( long size = segment.size(); size >= MIN_MERGE_BYTES; size /= MERGE_FACTOR ) {
+            tier++;
+        }
+        return tier;
+    }
+
+
+    /**
+     *  Starts merging MERGE_FACTOR adjacent segments of the same size
+     *  tier in the background, if there are any and no merge is running.
+     *  The postings of deleted documents are dropped. The segments stay
+     *  searchable until the merged segment replaces them in finishMerge().
+     */
+    private void startMerge() {
+        if ( merge != null || MERGE_FACTOR < 2 ) {
+            return;
+        }
+        int from = 0;
+        for ( int k=1; k<=segments.size(); k++ ) {
+            if ( k < segments.size() && tier( segments.get( k )) == tier( segments.get( from ))) {
+                continue;
+            }
+            if ( k - from >= MERGE_FACTOR ) {
+                break;
+            }
+            from = k;
+        }
+        if ( from + MERGE_FACTOR > segments.size() ) {
+            return;
+        }
+        final ArrayList<String> run = new ArrayList<String>( segmentNames.subList( from, from + MERGE_FACTOR ));
+        final String target = newFileName();
+        final BitSet deleted = (BitSet) registry.deleted().clone();
+        final boolean isOrdered = ordered;
+        mergeRun = run;
+        mergedName = target;
+        merge = background().submit( new Callable<Integer>() {
+            public Integer call() throws IOException {
+                long startTime = System.currentTimeMillis();
+                // The segments are opened again, they are not shared between threads.
+                Segment[] toMerge = new Segment[run.size()];
+                for ( int k=0; k<toMerge.length; k++ ) {
+                    toMerge[k] = new Segment( path, run.get( k ));
                 }
+                int n = SegmentMerger.merge( toMerge, isOrdered, deleted, path, target );
+                System.err.println( "Merged " + run.size() + " segments into " + target + " in " +
+                                    (System.currentTimeMillis() - startTime) + " ms" );
+                return n;
+            }
+        });
+    }
+
+
+    /**
+     *  Replaces the merged segments by the segment written by the merge
+     *  in the background, if it is done or if wait is true. Their files
+     *  are deleted once a commit no longer refers to them.
+     */
+    private void finishMerge( boolean wait ) {
+        if ( merge == null || (!wait && !merge.isDone()) ) {
+            return;
+        }
+        try {
+            merge.get();
+            int from = segmentNames.indexOf( mergeRun.get( 0 ));
+            for ( int k=0; k<mergeRun.size(); k++ ) {
+                segments.remove( from );
+                segmentNames.remove( from );
             }
+            segments.add( from, new Segment( path, mergedName ));
+            segmentNames.add( from, mergedName );
+            synchronized ( this ) {
+                obsolete.addAll( mergeRun );
+            }
+            changed = true;
         }
         catch ( Exception e ) {
+            // The segments are still there, only the merge is lost.
+            System.err.println( "Merge failed" );
             e.printStackTrace();
         }
+        merge = null;
+        mergeRun = null;
+        mergedName = null;
+    }
+
+
+    /** Writes the postings of a buffer to the segment called segmentName. */
+    private void writeBuffer( HashMap<String,PostingsList> postings, String segmentName ) throws IOException {
+        ArrayList<String> terms = new ArrayList<String>( postings.keySet() );
+        Collections.sort( terms );
+        SegmentWriter writer = new SegmentWriter( path, segmentName );
+        for ( String term : terms ) {
+            writer.add( term, postings.get( term ));
+        }
+        writer.close();
     }
 
 
     /**
-     *  Generates unique names for index files
+     *  Writes the postings in the buffer to a new segment on disk, and
+     *  empties the buffer.
      */
-    String generateFilename() {
-        String s = "index_" + Math.abs((new java.util.Date()).hashCode());
-        System.err.println( s );
-        return s;
+    private void spill() throws IOException {
+        finishCheckpoint( true );
+        finishMerge( false );
+        long startTime = System.currentTimeMillis();
+        String spillName = newFileName();
+        writeBuffer( buffer, spillName );
+        addSegment( spillName );
+        System.err.println( "Spilled " + buffer.size() + " terms to " + spillName + " in " +
+                            (System.currentTimeMillis() - startTime) + " ms" );
+        buffer = new HashMap<String,PostingsList>();
+        bufferBytes = 0;
     }
 
 
     /**
-     *   It is ABSOLUTELY ESSENTIAL to run this method before terminating
-     *   the JVM, otherwise the index files might become corrupted.
+     *  Opens a new segment after the others. The cached postings of its
+     *  terms are no longer complete.
      */
-    public void cleanup() {
-        // Save the docID-filename association list in the MegaMap as well
-        index.put( "..docIDs", docIDs );
-        index.put( "..docLengths", docLengths );
-        index.put( "..pageranks", pageranks);
-        // Shutdown the MegaMap thread gracefully
-        manager.shutdown();
+    private void addSegment( String segmentName ) throws IOException {
+        Segment segment = new Segment( path, segmentName );
+        segments.add( segment );
+        segmentNames.add( segmentName );
+        synchronized ( cache ) {
+            segmentsVersion++;
+            cache.invalidate( segment );
+        }
     }
 
 
+    /**
+     *  Deletes the obsolete files that the committed manifest no longer
+     *  refers to. A checkpoint may still have committed segments that
+     *  were merged meanwhile, they are deleted after a later commit.
+     */
+    private synchronized void deleteObsoleteFiles() {
+        ArrayList<String> kept = new ArrayList<String>();
+        HashSet<String> committed = manifest == null ? new HashSet<String>() : manifest.files();
+        for ( String s : obsolete ) {
+            if ( committed.contains( s )) {
+                kept.add( s );
+            }
+            else {
+                deleteFiles( s );
+            }
+        }
+        obsolete = kept;
+    }
+
 
     /**
-     *  Returns the dictionary (the set of terms in the index)
-     *  as a HashSet.
+     *  Deletes the files of this index that the manifest does not refer
+     *  to. They were written after the last commit by a JVM that did not
+     *  get to commit them. Only files called name_<n> with the suffix of
+     *  a segment or document file can have been written by this index,
+     *  and files that the manifest of another index in the directory
+     *  refers to are always kept.
      */
-    public Set getDictionary() {
-        return index.getKeys();
+    private void deleteUncommittedFiles() {
+        String[] files = new File( path ).list();
+        if ( files == null ) {
+            return;
+        }
+        HashSet<String> committed = manifest.files();
+        for ( String f : files ) {
+            if ( f.endsWith( Manifest.SUFFIX ) && !f.equals( name + Manifest.SUFFIX )) {
+                try {
+                    Manifest other = Manifest.read( path, f.substring( 0, f.length() - Manifest.SUFFIX.length() ));
+                    committed.addAll( other.files() );
+                }
+                catch ( Exception e ) {
+                    // Its files are not known, so none are deleted.
+                    System.err.println( "Could not read " + f + ", keeping uncommitted files" );
+                    return;
+                }
+            }
+        }
+        for ( String f : files ) {
+            String base = fileBase( f );
+            if ( base != null && base.startsWith( name + "_" ) &&
+                 base.substring( name.length() + 1 ).matches( "\\d+" ) && !committed.contains( base )) {
+                System.err.println( "Deleting uncommitted file " + f );
+                new File( path, f ).delete();
+            }
+        }
     }
 
 
+    /** The suffixes of the files of segments and documents. */
+    private static final String[] FILE_SUFFIXES = {
+        Segment.DICT_SUFFIX, Segment.POST_SUFFIX,
+        DocumentRegistry.PATHS_SUFFIX, DocumentRegistry.OFFSETS_SUFFIX,
+        DocumentRegistry.LENGTHS_SUFFIX, DocumentRegistry.RANKS_SUFFIX,
+        DocumentRegistry.ORDER_SUFFIX, DocumentRegistry.DELETED_SUFFIX
+    };
+
     /**
-     *  Merges several indexes into one.
+     *  The name of the segment or document file f, or null if f is not
+     *  such a file, its temporary file or a run of a merge into it.
      */
-    MegaMap merge( MegaMap[] indexes ) {
-        try {
-            MegaMap res = manager.createMegaMap( generateFilename(), path, true, false );
-            for(MegaMap map : indexes) {
-                for(String token : (Set<String>)map.getKeys()) {
-                    if(token.equals("..docIDs")) {
-                        HashMap<String,String> m = (HashMap<String,String>)map.get( "..docIDs" );
-                        if ( m == null ) {
-                            System.err.println( "Couldn't retrieve the associations between docIDs and document names" );
-                        } else {
-                            docIDs.putAll( m );
-                        }
-                        continue;
-                    }
-                    else if(token.equals("..docLengths")) {
+    private static String fileBase( String f ) {
+        if ( f.endsWith( ".tmp" )) {
+            f = f.substring( 0, f.length() - 4 );
+        }
+        for ( String suffix : FILE_SUFFIXES ) {
+            if ( f.endsWith( suffix )) {
+                return f.substring( 0, f.length() - suffix.length() ).replaceFirst( "\\.run\\d+$", "" );
+            }
+        }
+        return null;
+    }
 
-                        HashMap<String,Integer> n = (HashMap<String, Integer>)index.get( "..docLengths" );
-                        if( n == null )
-                        {
-                            System.err.println( "Could not retrieve the length of the documents." );
-                        }
-                        else
-                        {
-                            docLengths.putAll(n);
-                        }
-                    }
-                    else if(token.equals("..pageranks")) {
-                        HashMap<String,Double> k = (HashMap<String, Double>)index.get( "..pageranks" );
-                        if( k == null )
-                        {
-                            System.err.println( "Could not retrieve the pageranks of the documents." );
-                        }
-                        else
-                        {
-                            pageranks.putAll(k);
-                        }
-                    }
-                    else if(!res.hasKey(token)) {
-                        PostingsList pl = new PostingsList();
-                        pl.merge_pl( (PostingsList) map.get(token) );
-                        res.put(token, pl);
-                    } else {
-                        PostingsList pl = (PostingsList) res.get(token);
-                        pl.merge_pl( (PostingsList) map.get(token) );
-                    }
+
+    /** Deletes the segment and document files called s, and their temporary files. */
+    private static void deleteFiles( String s ) {
+        for ( String suffix : FILE_SUFFIXES ) {
+            new File( path, s + suffix ).delete();
+            new File( path, s + suffix + ".tmp" ).delete();
+        }
+    }
+
+
+    /**
+     *  Returns the dictionary (the set of terms in the index)
+     *  in sorted order.
+     */
+    public SortedSet<String> getDictionary() {
+        return getTerms( "" );
+    }
+
+
+    /**
+     *  Returns the terms in the index that start with prefix, in
+     *  sorted order.
+     */
+    public SortedSet<String> getTerms( String prefix ) {
+        finishCheckpoint( false );
+        TreeSet<String> result = new TreeSet<String>();
+        for ( Segment segment : segments ) {
+            segment.terms( prefix, result );
+        }
+        for ( HashMap<String,PostingsList> b : buffers() ) {
+            for ( String term : b.keySet() ) {
+                if ( term.startsWith( prefix )) {
+                    result.add( term );
                 }
             }
-            return res;
         }
-        catch ( MegaMapException e ) {
-            e.printStackTrace();
-            return null;
+        return result;
+    }
+
+
+    /** The buffer being written by a checkpoint, if any, and the buffer. */
+    private ArrayList<HashMap<String,PostingsList>> buffers() {
+        ArrayList<HashMap<String,PostingsList>> b = new ArrayList<HashMap<String,PostingsList>>( 2 );
+        if ( frozen != null ) {
+            b.add( frozen );
         }
+        b.add( buffer );
+        return b;
+    }
+
+
+    /**
+     *  Merges several indexes into a new segment, streaming their
+     *  postings through a SegmentMerger, and commits it. The docIDs of
+     *  index k are mapped to docIDs in the registry of the merged index
+     *  by docMaps[k].
+     */
+    void merge( Segment[] indexes, int[][] docMaps ) throws IOException {
+        long startTime = System.currentTimeMillis();
+        String mergedName = newFileName();
+        int n = SegmentMerger.merge( indexes, docMaps, path, mergedName );
+        segments.add( new Segment( path, mergedName ));
+        segmentNames.add( mergedName );
+        maxDocID = registry.size() - 1;
+        commit();
+        System.err.println( "Merged " + n + " terms in " + (System.currentTimeMillis() - startTime) + " ms" );
     }
 
     /**
-     *  Inserts this token in the hashtable.
+     *  Starts a new document. Checkpoints, merges and spills only happen
+     *  here, so a document is never split between segments.
      */
-    public void insert( String token, int docID, int offset ) {
-        PostingsList current_list = null;
-        try {
-            current_list = (PostingsList)index.get(token);
-        } catch (MegaMapException e) {
-            System.out.println("MegaMap BROKE!");
+    private void startDocument( int docID ) {
+        finishCheckpoint(false);
+        finishMerge(false);
+        startMerge();
+        if(bufferBytes >= MEMORY_BUDGET)
+        {
+            try {
+                spill();
+            } catch (IOException e) {
+                System.err.println("Could not spill the index to disk, keeping it in memory.");
+                e.printStackTrace();
+                bufferBytes = 0;
+            }
+        }
+        else if(checkpointDue)
+        {
+            checkpointDue = false;
+            startCheckpoint(docID);
         }
+        if(checkpointTimer == null && CHECKPOINT_INTERVAL > 0)
+        {
+            checkpointTimer = new Timer("checkpoint timer " + name, true);
+            checkpointTimer.schedule(new TimerTask() {
+                public void run() {
+                    checkpointDue = true;
+                }
+            }, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL);
+        }
+        if(docID <= maxDocID)
+            ordered = false;
+        maxDocID = Math.max(maxDocID, docID);
+        lastDocID = docID;
+        changed = true;
+        numberOfDocs = -2;
+    }
+
+
+    /**
+     *  Inserts this token in the buffer. The buffer is spilled to disk
+     *  first if it is full and a new document starts, and a checkpoint
+     *  is started if one is due.
+     */
+    public void insert( String token, int docID, int offset ) {
+        if(docID != lastDocID)
+            startDocument(docID);
+        PostingsList current_list = buffer.get(token);
         // If the token does not exist yet - create a new postingslist for it
         if(current_list == null) {
             current_list = new PostingsList();
-            index.put(token, current_list);
+            buffer.put(token, current_list);
+            bufferBytes += TERM_BYTES + 2 * token.length();
         }
+        if(current_list.size() == 0 || current_list.docID(current_list.size() - 1) != docID)
+            bufferBytes += POSTING_BYTES;
+        bufferBytes += OFFSET_BYTES;
 
         // Add the docID, offset to the PostingsList
         current_list.add(docID, offset);
     }
 
 
+    /**
+     *  Inserts the terms of a document with their positions, with one
+     *  buffer lookup per term.
+     */
+    public void insertDocument( int docID, Map<String,int[]> positions ) {
+        if(docID != lastDocID)
+            startDocument(docID);
+        for(Map.Entry<String,int[]> e : positions.entrySet()) {
+            String token = e.getKey();
+            int[] offsets = e.getValue();
+            PostingsList current_list = buffer.get(token);
+            if(current_list == null) {
+                current_list = new PostingsList();
+                buffer.put(token, current_list);
+                bufferBytes += TERM_BYTES + 2 * token.length();
+            }
+            if(current_list.size() == 0 || current_list.docID(current_list.size() - 1) != docID)
+                bufferBytes += POSTING_BYTES;
+            bufferBytes += (long) OFFSET_BYTES * offsets.length;
+            current_list.add(docID, offsets);
+        }
+    }
+
+
     /**
      *  Returns the postings for a specific term, or null
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
+        return lookup( token );
+    }
+
+
+    /**
+     *  Returns the postings for a term from the segments, decoded from
+     *  the mapped postings files, together with the postings in the
+     *  buffers. Returns null if the term is in none of them.
+     *
+     *  A token ending with '*' is a prefix query, and gets the postings
+     *  of all terms starting with the prefix.
+     */
+    private PostingsList lookup( String token ) {
+        if ( token.length() > 1 && token.endsWith( "*" )) {
+            ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+            for ( String term : getTerms( token.substring( 0, token.length() - 1 ))) {
+                lists.add( lookup( term ));
+            }
+            return lists.isEmpty() ? null : PostingsList.union_all( lists );
+        }
+        finishCheckpoint( false );
+        finishMerge( false );
+        PostingsList pl = segmentPostings( token );
+        // The lists in the cache and the buffers must not be changed.
+        boolean copy = pl != null;
+        for ( HashMap<String,PostingsList> b : buffers() ) {
+            PostingsList next = b.get( token );
+            if ( next != null && pl == null ) {
+                pl = next;
+                copy = true;
+            }
+            else if ( next != null ) {
+                if ( copy ) {
+                    pl = combine( new PostingsList(), pl );
+                    copy = false;
+                }
+                pl = combine( pl, next );
+            }
+        }
+        if ( pl != null && registry.hasDeletions() ) {
+            pl = pl.without( registry.deleted() );
+            if ( pl.size() == 0 ) {
+                return null;
+            }
+        }
+        return pl;
+    }
+
+
+    /**
+     *  Deletes a document from the index. Its postings are skipped by
+     *  searches, and dropped when the segments holding them are merged.
+     *  The deletion is durable after the next commit.
+     */
+    public void delete( int docID ) {
+        if ( docID < 0 || docID >= registry.size() || registry.isDeleted( docID )) {
+            return;
+        }
+        registry.delete( docID );
+        changed = true;
+        numberOfDocs = -2;
+    }
+
+
+    /**
+     *  Deletes the document with the given path, and returns false if
+     *  there is none.
+     */
+    public boolean delete( String documentPath ) {
+        int docID = registry.id( documentPath );
+        if ( docID < 0 ) {
+            return false;
+        }
+        delete( docID );
+        return true;
+    }
+
+
+    /**
+     *  Returns the postings for a term from all segments, through the
+     *  cache. The list MUST not be changed.
+     */
+    private PostingsList segmentPostings( String token ) {
+        PostingsList pl = cache.get( token );
+        if ( pl != null ) {
+            return pl;
+        }
+        pl = decode( segments, token );
+        if ( pl != null ) {
+            cache.put( token, pl );
+        }
+        return pl;
+    }
+
+
+    /** Returns the postings for a term from the given segments, or null. */
+    private static PostingsList decode( List<Segment> segments, String token ) {
+        PostingsList pl = null;
+        for ( Segment segment : segments ) {
+            PostingsList next = segment.getPostings( token );
+            if ( next != null ) {
+                pl = pl == null ? next : combine( pl, next );
+            }
+        }
+        return pl;
+    }
+
+
+    /**
+     *  Starts loading the document files and term dictionaries into the
+     *  page cache, and the postings of n terms into the postings cache,
+     *  in a background thread. The terms are the most frequent ones in
+     *  the queries of queryLog, or if it is null the terms with the
+     *  highest document frequencies. Searches can go on meanwhile. The
+     *  time taken and the share of postings or query terms covered are
+     *  printed when it is done.
+     */
+    public Thread warmUp( final int n, final String queryLog ) {
+        // The segments may change on the indexing thread.
+        final ArrayList<Segment> snapshot = new ArrayList<Segment>( segments );
+        final int version = segmentsVersion;
+        Thread t = new Thread( "warm-up " + name ) {
+            public void run() {
+                try {
+                    long startTime = System.currentTimeMillis();
+                    registry.load();
+                    for ( Segment segment : snapshot ) {
+                        segment.loadDictionary();
+                    }
+                    // The weight of each term is its share of total[0].
+                    HashMap<String,Integer> weights = new HashMap<String,Integer>();
+                    long[] total = new long[1];
+                    List<String> terms = queryLog != null ?
+                        queryLogTerms( queryLog, n, weights, total ) : highestDfTerms( snapshot, n, weights, total );
+                    long covered = 0;
+                    int cached = 0;
+                    for ( String term : terms ) {
+                        if ( segmentsVersion != version ) {
+                            System.err.println( "Warm-up stopped, the index has changed" );
+                            return;
+                        }
+                        PostingsList pl = decode( snapshot, term );
+                        if ( pl == null ) {
+                            continue;
+                        }
+                        covered += weights.get( term );
+                        synchronized ( cache ) {
+                            if ( segmentsVersion == version && !cache.contains( term )) {
+                                cache.put( term, pl );
+                            }
+                            if ( cache.contains( term )) {
+                                cached++;
+                            }
+                        }
+                    }
+                    System.err.println( "Warmed up " + terms.size() + " terms (" + cached + " cached) covering " +
+                                        (total[0] == 0 ? 0 : 100 * covered / total[0]) +
+                                        (queryLog != null ? "% of the query terms" : "% of the postings") + " in " +
+                                        (System.currentTimeMillis() - startTime) + " ms" );
+                }
+                catch ( IOException e ) {
+                    System.err.println( "Warm-up failed" );
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon( true );
+        t.setPriority( Thread.MIN_PRIORITY );
+        t.start();
+        return t;
+    }
+
+
+    /**
+     *  Returns the n terms that occur most often in the queries of a
+     *  query log, one query per line. The weight of a term is the number
+     *  of times it occurs, and total[0] is set to the sum of the weights.
+     */
+    private static List<String> queryLogTerms( String queryLog, int n, HashMap<String,Integer> weights,
+                                               long[] total ) throws IOException {
+        BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( queryLog ), "UTF-8" ));
         try {
-            return (PostingsList)index.get( token );
+            String line;
+            while ( (line = in.readLine()) != null ) {
+                for ( String term : new Query( SimpleTokenizer.normalize( line )).terms ) {
+                    if ( !term.endsWith( "*" )) {
+                        Integer c = weights.get( term );
+                        weights.put( term, c == null ? 1 : c + 1 );
+                        total[0]++;
+                    }
+                }
+            }
         }
-        catch( Exception e ) {
-            return new PostingsList();
+        finally {
+            in.close();
+        }
+        return heaviest( weights, n );
+    }
+
+
+    /**
+     *  Returns the n terms with the highest document frequencies in the
+     *  segments. The weight of a term is its document frequency, and
+     *  total[0] is set to the number of postings.
+     */
+    private static List<String> highestDfTerms( List<Segment> segments, int n, HashMap<String,Integer> weights,
+                                                long[] total ) {
+        // The n best terms of each segment are candidates.
+        for ( Segment segment : segments ) {
+            PriorityQueue<Long> best = new PriorityQueue<Long>();
+            TermDictionary.Cursor c = segment.dictionary().cursor();
+            while ( c.next() ) {
+                total[0] += c.df();
+                // The df in the high bits and the ordinal in the low bits.
+                best.add( ((long) c.df() << 32) | c.ordinal() );
+                if ( best.size() > n ) {
+                    best.poll();
+                }
+            }
+            for ( long b : best ) {
+                weights.put( segment.term( (int) b ), 0 );
+            }
+        }
+        for ( Segment segment : segments ) {
+            for ( Map.Entry<String,Integer> e : weights.entrySet() ) {
+                int ordinal = segment.ordinal( e.getKey() );
+                if ( ordinal >= 0 ) {
+                    e.setValue( e.getValue() + segment.df( ordinal ));
+                }
+            }
         }
+        return heaviest( weights, n );
+    }
+
+
+    /** Returns the n terms with the largest weights, largest first. */
+    private static List<String> heaviest( final HashMap<String,Integer> weights, int n ) {
+        ArrayList<String> terms = new ArrayList<String>( weights.keySet() );
+        Collections.sort( terms, new Comparator<String>() {
+            public int compare( String a, String b ) {
+                return weights.get( b ) - weights.get( a );
+            }
+        });
+        return terms.size() > n ? terms.subList( 0, n ) : terms;
+    }
+
+
+    /** The postings cache in front of the segments. */
+    public PostingsCache getCache() {
+        return cache;
+    }
+
+
+    /** Merges b into a. */
+    private static PostingsList combine( PostingsList a, PostingsList b ) {
+        a.merge_pl( b );
+        return a;
     }
 
 
     public PostingsList search( Query query, int queryType, int rankingType ) {
         PostingsList ret = search_wo_sort(query, queryType, rankingType);
         if(ret != null)
-            Collections.sort(ret.list);
+            ret.sortByScore();
         return ret;
     }
     /**
-     *  Searches the index for postings matching the query.
+     *  Searches the index and keeps only the k best documents of a
+     *  ranked query, best first.
      */
-    public PostingsList search_wo_sort(Query query, int queryType, int rankingType) {
-        if(index == null) {
-            return null;
+    public PostingsList search( Query query, int queryType, int rankingType, int k ) {
+        if(queryType != Index.RANKED_QUERY)
+            return search_wo_sort(query, queryType, rankingType);
+        long startTime = System.nanoTime();
+        rank(query, rankingType);
+        TopKCollector collector = new TopKCollector(k);
+        accumulator.collect(collector);
+        System.out.println("This query took " + (System.nanoTime() - startTime));
+        return collector.results();
+    }
+
+    /**
+     *  Scores every document that contains a term of the query into the
+     *  accumulator, one term at a time. Terms that are not in the index,
+     *  or are too common with SPEED_UP, are removed from the query.
+     */
+    private void rank(Query query, int rankingType) {
+        if(numberOfDocs < 0)
+        {
+            numberOfDocs = registry.size() - registry.numberOfDeleted();
         }
-        try {
-            if(numberOfDocs < 0)
+        if(accumulator == null)
+        {
+            accumulator = new ScoreAccumulator(registry.size());
+        }
+        accumulator.clear();
+
+        boolean tfidf = rankingType == Index.TF_IDF || rankingType == Index.COMBINATION;
+        int i = 0;
+        while(i < query.terms.size())
+        {
+            String term = query.terms.get(i);
+            PostingsList pl = getPostings(term);
+            if(pl == null || (Index.SPEED_UP && (double) numberOfDocs / IE_THRESHOLD <= pl.size()))
             {
-                numberOfDocs = docLengths.keySet().size();
+                query.terms.remove(i);
+                continue;
             }
-            if(queryType == Index.INTERSECTION_QUERY)
+            double idf = Math.log10( numberOfDocs / pl.size() );
+            double wtq = query.weights.get(term) * idf;
+            PostingsList.Cursor c = pl.cursor();
+            while(c.next())
             {
-                LinkedList<PostingsList> queue = new LinkedList<PostingsList>();
-                for( String str : query.terms ) {
-                    PostingsList tmp = (PostingsList)index.get(str);
-                    if(tmp == null)
-                        return null; 
-                    else
-                    {
-                        if(!Index.SPEED_UP || (double) numberOfDocs / IE_THRESHOLD > tmp.size())
-                            queue.add(tmp);
-                    }
-                }
-                Collections.sort(queue);
+                //accumulator.add(c.docID(), (1 + Math.log10(c.tf())) * idf * wtq);
+                accumulator.add(c.docID(), tfidf ? c.tf() * idf * wtq : 0);
+            }
+            i++;
+        }
 
-                PostingsList result = queue.pollFirst();
-                while(queue.size() != 0) {
-                    result = PostingsList.intersect_query(result, queue.pollFirst());
-                }
-                return result;
+        if(tfidf)
+        {
+            for(int j = 0; j < accumulator.size(); j++)
+            {
+                int length = registry.length(accumulator.docID(j));
+                accumulator.setScore(j, accumulator.score(j) / length);
             }
-            else if(queryType == Index.PHRASE_QUERY)
+        }
+        if(rankingType == Index.PAGERANK || rankingType == Index.COMBINATION)
+        {
+            if(!registry.hasPageranks())
             {
-                PostingsList result = new PostingsList();
-                while(query.size() != 0)
-                {
-                    PostingsList tmp = (PostingsList)index.get(query.terms.pollFirst());
-                    if(tmp != null && (!Index.SPEED_UP || (double) numberOfDocs / IE_THRESHOLD > tmp.size()))
-                    {
-                        result = tmp;
-                        break;
-                    }
-                    else
-                        continue;
-                }
-                while(query.size() != 0)
-                {
-                    PostingsList tmp = (PostingsList)index.get(query.terms.pollFirst());
-                    if(tmp == null)
-                        return null;
-                    else if(!Index.SPEED_UP || (double) numberOfDocs / IE_THRESHOLD > tmp.size())
-                        result = PostingsList.phrase_query(result, tmp);
-                    else
-                        result = PostingsList.add_wildcard(result);
-                }
-                return result;
+                registry.setPageranks(pageranks());
             }
-            else if(queryType == Index.RANKED_QUERY)
+            for(int j = 0; j < accumulator.size(); j++)
             {
-                 long startTime = System.nanoTime();
+                accumulator.setScore(j, accumulator.score(j)
+                        + registry.pagerank(accumulator.docID(j)) * PAGERANK_WEIGHT);
+            }
+        }
+    }
 
-                PostingsList result = new PostingsList();
-                int i = 0;
-                while(i < query.terms.size())
+    /**
+     *  Searches the index for postings matching the query.
+     */
+    public PostingsList search_wo_sort(Query query, int queryType, int rankingType) {
+        if(numberOfDocs < 0)
+        {
+            numberOfDocs = registry.size() - registry.numberOfDeleted();
+        }
+        if(queryType == Index.INTERSECTION_QUERY)
+        {
+            LinkedList<PostingsList> queue = new LinkedList<PostingsList>();
+            for( String str : query.terms ) {
+                PostingsList tmp = lookup(str);
+                if(tmp == null)
+                    return null; 
+                else
                 {
-                    String term = query.terms.get(i);
-                    PostingsList pl = getPostings(term);
-                    if(pl != null && (!Index.SPEED_UP || (double) numberOfDocs / IE_THRESHOLD > pl.size()))
-                    {
-                        result = PostingsList.union(result, pl);
-                        i++;
-                    }
-                    else
-                    {
-                        query.terms.remove(i);
-                    }
+                    if(!Index.SPEED_UP || (double) numberOfDocs / IE_THRESHOLD > tmp.size())
+                        queue.add(tmp);
                 }
+            }
+            if(queue.size() == 0)
+                return null;
+            Collections.sort(queue);
 
-                if(rankingType == Index.TF_IDF || rankingType == Index.COMBINATION)
-                {
-                    for( String term : query.terms )
-                    {
-                        PostingsList tmp = (PostingsList) getPostings(term);
-                        if(tmp == null) continue;
-
-                        double idf = Math.log10( numberOfDocs / tmp.size() );
-
-                        double wtq = query.weights.get(term) * idf;
-                        for(PostingsEntry pe : tmp.list)
-                        {
-                            if(pe.offsets.size() != 0)
-                            {
-                                //result.addScore(pe.docID, (1 + Math.log10(pe.offsets.size()))
-                                //* idf * wtq);
-                                result.addScore(pe.docID, pe.offsets.size() * idf * wtq);
-                            }
-                        }
-                    }
-                    for ( PostingsEntry pe : result.list )
-                    {
-                        int length = docLengths.get(""+ pe.docID);
-                        pe.score /= length;
-                    }
-                }
-                if(rankingType == Index.PAGERANK || rankingType == Index.COMBINATION)
+            PostingsList[] lists = queue.toArray(new PostingsList[queue.size()]);
+            if(matches.length < lists[0].size())
+                matches = new int[lists[0].size()];
+            int n = PostingsList.intersect_all(lists, matches);
+            return PostingsList.from_docIDs(matches, n);
+        }
+        else if(queryType == Index.PHRASE_QUERY)
+        {
+            // Terms that are too common with SPEED_UP are left as
+            // null, i.e. any word may stand there in the phrase.
+            // Missing terms before the first usable one are skipped.
+            PostingsList[] lists = new PostingsList[query.size()];
+            boolean found = false;
+            for(int k = 0; k < lists.length; k++)
+            {
+                PostingsList tmp = lookup(query.terms.get(k));
+                if(tmp == null && !found)
+                    continue;
+                else if(tmp == null)
+                    return null;
+                else if(!Index.SPEED_UP || (double) numberOfDocs / IE_THRESHOLD > tmp.size())
                 {
-                    if(pageranks == null)
-                        return result;
-                    for(PostingsEntry pe : result.list)
-                    {
-                        String tmpStr = docIDs.get("" + pe.docID);
-                        tmpStr = tmpStr.substring(tmpStr.lastIndexOf('/') + 1,
-                                tmpStr.lastIndexOf('.'));
-                        result.addScore(pe.docID, ((Double) pageranks.get(tmpStr))
-                                * PAGERANK_WEIGHT);
-                    }
+                    lists[k] = tmp;
+                    found = true;
                 }
-                //Collections.sort(result.list);
-                System.out.println("This query took " + (System.nanoTime() - startTime));
-                return result;
             }
-            else
-            {
-                return new PostingsList();
-            }
-        } catch (MegaMapException e) {
-            System.out.println("MegaMap BROKE while searching!");
-            e.printStackTrace();
-            return null;
+            return PostingsList.phrase_all(lists);
+        }
+        else if(queryType == Index.RANKED_QUERY)
+        {
+            long startTime = System.nanoTime();
+            rank(query, rankingType);
+            PostingsList result = accumulator.toPostingsList();
+            System.out.println("This query took " + (System.nanoTime() - startTime));
+            return result;
+        }
+        else
+        {
+            return new PostingsList();
         }
     }
 
@@ -469,8 +1326,36 @@ public class MegaIndex implements Index {
         tmp.add(token);
     }
 
+    /** The PageRank of each document by file name, computed the first time it is needed. */
+    private HashMap<String, Double> pageranks() {
+        if ( pageranks == null ) {
+            System.err.println("Creating PageRank!");
+            PageRank pr = new PageRank(pathToLinks);
+            pageranks = pr.getPagerank();
+            System.err.println("Done creating PageRank!");
+        }
+        return pageranks;
+    }
+
     public void setPagerank(HashMap<String, Double> new_pr)
     {
         pageranks = new_pr;
+        registry.setPageranks(pageranks);
+    }
+
+    public String getDocumentPath( int docID )
+    {
+        return docID < registry.size() ? registry.path(docID) : null;
+    }
+
+    public int getDocumentLength( int docID )
+    {
+        return registry.length(docID);
+    }
+
+    /** The registry that hands out docIDs for this index. */
+    public DocumentRegistry getRegistry()
+    {
+        return registry;
     }
 }
@@ -0,0 +1,339 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.pdfparser.*;
+import org.apache.pdfbox.util.PDFTextStripper;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+
+/**
+ *   Extracts the text of PDF files on a pool of THREADS threads, so that
+ *   a large or broken PDF holds up an indexing thread for at most
+ *   TIMEOUT milliseconds.
+ *
+ *   Files larger than MAX_BYTES are skipped, and the text after the
+ *   first MAX_CHARS characters of a document is dropped. The text is
+ *   handed to the tokenizer page by page through a small queue, so a
+ *   document is never kept in memory as one string. PDFBox cannot be
+ *   interrupted while it parses a file, so a thread whose document
+ *   timed out is busy until parsing is done, but extracts no pages.
+ */
+public class PDFExtractor {
+
+    /** Number of threads that extract text. */
+    public static int THREADS = 2;
+
+    /** Milliseconds a document may take, including waiting for a thread. */
+    public static long TIMEOUT = 60000;
+
+    /** Size of the largest PDF file that is extracted, in bytes. */
+    public static long MAX_BYTES = 64 << 20;
+
+    /** Number of characters extracted from a document at most. */
+    public static long MAX_CHARS = 16 << 20;
+
+    /** Number of pages extracted ahead of the tokenizer. */
+    private static final int PAGES_AHEAD = 4;
+
+    /** Queued when a file has been parsed, and after its last page. */
+    private static final Object PARSED = new Object();
+    private static final Object END = new Object();
+
+    private ExecutorService pool = null;
+
+    /** Bounds the number of documents that are extracted or wait for a thread. */
+    private final Semaphore slots = new Semaphore( 2 * THREADS );
+
+    private final AtomicInteger documents = new AtomicInteger();
+    private final AtomicInteger extracted = new AtomicInteger();
+    private final AtomicInteger truncated = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+
+    /**
+     *  Starts extracting the text of the PDF file @code{f}, read from
+     *  @code{channel}. The channel is closed when extraction is done.
+     *  Returns a reader of the text, or null if the file could not be
+     *  parsed as a PDF. Throws Skipped if the file is too large, or if
+     *  parsing times out.
+     */
+    public Reader extract( File f, FileChannel channel ) throws IOException {
+        documents.incrementAndGet();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        if ( channel.size() > MAX_BYTES ) {
+            channel.close();
+            skipped.incrementAndGet();
+            throw new Skipped( "Skipped " + f.getPath() + ", it is larger than " + MAX_BYTES + " bytes" );
+        }
+        try {
+            if ( !slots.tryAcquire( TIMEOUT, TimeUnit.MILLISECONDS )) {
+                channel.close();
+                timedOut.incrementAndGet();
+                throw new Skipped( "Timed out waiting to extract " + f.getPath() );
+            }
+        }
+        catch ( InterruptedException e ) {
+            channel.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted waiting to extract " + f.getPath() );
+        }
+        Pages pages = new Pages( f, deadline );
+        pool().execute( new Extraction( channel, pages ));
+        Object parsed = pages.take();
+        if ( parsed != PARSED ) {
+            failed.incrementAndGet();
+            return null;
+        }
+        return pages;
+    }
+
+
+    /** The threads that extract text, started when the first PDF is found. */
+    private synchronized ExecutorService pool() {
+        if ( pool == null ) {
+            pool = Executors.newFixedThreadPool( THREADS, new ThreadFactory() {
+                private int n = 0;
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "pdf extractor " + n++ );
+                    t.setDaemon( true );
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+
+    /** Parses a PDF file and queues the text of its pages. */
+    private class Extraction implements Runnable {
+        private final FileChannel channel;
+        private final Pages pages;
+
+        Extraction( FileChannel channel, Pages pages ) {
+            this.channel = channel;
+            this.pages = pages;
+        }
+
+        public void run() {
+            COSDocument cd = null;
+            try {
+                PDFParser parser = new PDFParser( Channels.newInputStream( channel ));
+                parser.parse();
+                cd = parser.getDocument();
+                pages.put( PARSED );
+                PageStripper stripper = new PageStripper( pages );
+                try {
+                    stripper.writeText( new PDDocument( cd ), stripper.out );
+                    stripper.flush();
+                }
+                catch ( Truncated e ) {
+                    truncated.incrementAndGet();
+                }
+                pages.put( END );
+                extracted.incrementAndGet();
+            }
+            catch ( IOException e ) {
+                pages.fail( e );
+            }
+            catch ( RuntimeException e ) {
+                // PDFBox throws these for some broken files
+                pages.fail( new IOException( e ));
+            }
+            finally {
+                try {
+                    if ( cd != null ) {
+                        cd.close();
+                    }
+                    channel.close();
+                }
+                catch ( IOException e ) {
+                }
+                slots.release();
+            }
+        }
+    }
+
+
+    /**
+     *  Thrown when a PDF file is not indexed because it is too large or
+     *  timed out. The file has been counted, and only the message needs
+     *  to be reported.
+     */
+    public static class Skipped extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Skipped( String message ) {
+            super( message );
+        }
+    }
+
+
+    /** Thrown to stop extracting a document that has reached MAX_CHARS. */
+    private static class Truncated extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+
+    /** Queues the text of each page as soon as it has been extracted. */
+    private static class PageStripper extends PDFTextStripper {
+        final StringWriter out = new StringWriter();
+        private final Pages pages;
+        private long chars = 0;
+
+        PageStripper( Pages pages ) throws IOException {
+            this.pages = pages;
+        }
+
+        protected void endPage( PDPage page ) throws IOException {
+            super.endPage( page );
+            flush();
+        }
+
+        /** Queues the text written since the last page. */
+        void flush() throws IOException {
+            StringBuffer text = out.getBuffer();
+            if ( text.length() == 0 ) {
+                return;
+            }
+            String page = text.toString();
+            text.setLength( 0 );
+            chars += page.length();
+            if ( chars > MAX_CHARS ) {
+                pages.put( page.substring( 0, page.length() - (int) (chars - MAX_CHARS) ));
+                throw new Truncated();
+            }
+            pages.put( page );
+        }
+    }
+
+
+    /**
+     *  The text of a document, read by the tokenizer while the pages are
+     *  extracted. Reading throws Skipped if the document is not done by
+     *  its deadline.
+     */
+    private class Pages extends Reader {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>( PAGES_AHEAD );
+        private final File file;
+        private final long deadline;
+
+        /** Set when the reader gives up, so that no more pages are extracted. */
+        private volatile boolean cancelled = false;
+
+        private String page = "";
+        private int pos = 0;
+        private boolean ended = false;
+
+        Pages( File file, long deadline ) {
+            this.file = file;
+            this.deadline = deadline;
+        }
+
+        /** Queues a page or a marker, waiting for room unless the reader has given up. */
+        void put( Object o ) throws IOException {
+            try {
+                do {
+                    if ( cancelled ) {
+                        throw new IOException( "Gave up extracting " + file.getPath() );
+                    }
+                } while ( !queue.offer( o, 100, TimeUnit.MILLISECONDS ));
+            }
+            catch ( InterruptedException e ) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        /** Queues the exception that stopped the extraction. */
+        void fail( IOException e ) {
+            try {
+                put( e );
+            }
+            catch ( IOException ignored ) {
+                // The reader has given up already
+            }
+        }
+
+        /** Takes the next page or marker, waiting until the deadline. */
+        Object take() throws IOException {
+            Object o;
+            try {
+                o = queue.poll( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException e ) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted extracting " + file.getPath() );
+            }
+            if ( o == null ) {
+                close();
+                timedOut.incrementAndGet();
+                throw new Skipped( "Timed out extracting " + file.getPath() );
+            }
+            return o;
+        }
+
+        public int read( char[] cbuf, int off, int len ) throws IOException {
+            while ( pos == page.length() ) {
+                if ( ended ) {
+                    return -1;
+                }
+                Object o = take();
+                if ( o == END ) {
+                    ended = true;
+                    return -1;
+                }
+                if ( o instanceof IOException ) {
+                    ended = true;
+                    failed.incrementAndGet();
+                    throw new IOException( "Could not extract " + file.getPath(), (IOException) o );
+                }
+                page = (String) o;
+                pos = 0;
+            }
+            int n = Math.min( len, page.length() - pos );
+            page.getChars( pos, pos + n, cbuf, off );
+            pos += n;
+            return n;
+        }
+
+        public void close() {
+            cancelled = true;
+            queue.clear();
+        }
+    }
+
+
+    /** Number of PDF files found. */
+    public int documents() {
+        return documents.get();
+    }
+
+    public String toString() {
+        return "PDF extraction: " + documents.get() + " files, " + extracted.get() + " extracted (" +
+            truncated.get() + " truncated), " + skipped.get() + " skipped, " + timedOut.get() +
+            " timed out, " + failed.get() + " failed";
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ *   A cache of decoded postings lists in front of the segments of a
+ *   MegaIndex, bounded by the estimated size of the lists in bytes.
+ *
+ *   With LRU the least recently used list is evicted first. With LFU
+ *   the least frequently used list is evicted first, and among lists
+ *   used equally often the least recently used one. Both take constant
+ *   time per operation: LRU keeps the lists in access order, and LFU
+ *   keeps one list of terms in access order per use count.
+ *
+ *   The cached lists are shared, and MUST not be changed. The cache is
+ *   synchronized, so it can be filled from a background thread.
+ */
+public class PostingsCache {
+
+    /* Eviction policies */
+    public static final int LRU = 0;
+    public static final int LFU = 1;
+
+    /** Estimated size of a cached term apart from its postings. */
+    private static final int ENTRY_BYTES = 96;
+
+    private final long budget;
+    private final int policy;
+
+    /** The cached lists with their use counts, in access order for LRU. */
+    private final LinkedHashMap<String,Entry> entries;
+
+    /** For LFU, the terms used n times in access order, and the smallest such n. */
+    private final HashMap<Integer,LinkedHashSet<String>> byCount = new HashMap<Integer,LinkedHashSet<String>>();
+    private int minCount = 0;
+
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+
+    private static class Entry {
+        final PostingsList postings;
+        final long bytes;
+        int count = 1;
+
+        Entry( PostingsList postings, long bytes ) {
+            this.postings = postings;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /** Creates a cache of at most budget bytes using the given eviction policy. */
+    public PostingsCache( long budget, int policy ) {
+        this.budget = budget;
+        this.policy = policy;
+        entries = new LinkedHashMap<String,Entry>( 16, 0.75f, policy == LRU );
+    }
+
+
+    /** Returns the cached postings of a term, or null if they are not cached. */
+    public synchronized PostingsList get( String term ) {
+        Entry e = entries.get( term );
+        if ( e == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if ( policy == LFU ) {
+            touch( term, e );
+        }
+        return e.postings;
+    }
+
+    /** Returns true if the postings of a term are cached, without counting it as a use. */
+    public synchronized boolean contains( String term ) {
+        return entries.containsKey( term );
+    }
+
+
+    /**
+     *  Caches the postings of a term, evicting other lists until they fit.
+     *  Lists larger than the whole budget are not cached.
+     */
+    public synchronized void put( String term, PostingsList postings ) {
+        long size = ENTRY_BYTES + 2 * term.length() + postings.sizeInBytes();
+        if ( size > budget ) {
+            return;
+        }
+        remove( term );
+        while ( bytes + size > budget ) {
+            evict();
+        }
+        Entry e = new Entry( postings, size );
+        entries.put( term, e );
+        bytes += size;
+        if ( policy == LFU ) {
+            bucket( 1 ).add( term );
+            minCount = 1;
+        }
+    }
+
+
+    /** Removes the postings of a term from the cache. */
+    public synchronized void remove( String term ) {
+        Entry e = entries.remove( term );
+        if ( e == null ) {
+            return;
+        }
+        bytes -= e.bytes;
+        if ( policy == LFU ) {
+            LinkedHashSet<String> terms = byCount.get( e.count );
+            terms.remove( term );
+            if ( terms.isEmpty() ) {
+                byCount.remove( e.count );
+            }
+        }
+    }
+
+
+    /**
+     *  Removes the terms of a segment that has been added to the index,
+     *  since their cached postings are no longer complete.
+     */
+    public synchronized void invalidate( Segment segment ) {
+        ArrayList<String> stale = new ArrayList<String>();
+        for ( String term : entries.keySet() ) {
+            if ( segment.ordinal( term ) >= 0 ) {
+                stale.add( term );
+            }
+        }
+        for ( String term : stale ) {
+            remove( term );
+        }
+    }
+
+    /** Empties the cache. The counters are kept. */
+    public synchronized void clear() {
+        entries.clear();
+        byCount.clear();
+        bytes = 0;
+    }
+
+
+    /** Evicts one list according to the policy. */
+    private void evict() {
+        String term;
+        if ( policy == LFU ) {
+            if ( !byCount.containsKey( minCount )) {
+                // Only removals have happened since minCount was set.
+                minCount = Integer.MAX_VALUE;
+                for ( int count : byCount.keySet() ) {
+                    minCount = Math.min( minCount, count );
+                }
+            }
+            term = byCount.get( minCount ).iterator().next();
+        }
+        else {
+            term = entries.keySet().iterator().next();
+        }
+        remove( term );
+        evictions++;
+    }
+
+    /** Moves a term to the next use count. */
+    private void touch( String term, Entry e ) {
+        LinkedHashSet<String> terms = byCount.get( e.count );
+        terms.remove( term );
+        if ( terms.isEmpty() ) {
+            byCount.remove( e.count );
+            if ( minCount == e.count ) {
+                minCount++;
+            }
+        }
+        e.count++;
+        bucket( e.count ).add( term );
+    }
+
+    private LinkedHashSet<String> bucket( int count ) {
+        LinkedHashSet<String> terms = byCount.get( count );
+        if ( terms == null ) {
+            terms = new LinkedHashSet<String>();
+            byCount.put( count, terms );
+        }
+        return terms;
+    }
+
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Number of cached lists. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Estimated size of the cached lists in bytes. */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "Postings cache: " + hits + " hits, " + misses + " misses (" +
+            (lookups == 0 ? 0 : 100 * hits / lookups) + "% hits), " + evictions + " evictions, " +
+            entries.size() + " lists in " + (bytes >> 10) + " of " + (budget >> 10) + " kB";
+    }
+}
@@ -1,70 +1,93 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   First version:  Johan Boye, 2010
  *   Second version: Johan Boye, 2012
- */  
+ */
 
 package ir;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
-    
+
     public int docID;
     public double score;
     // Important: This MUST to be kept sorted!
-    public ArrayList<Integer> offsets;
+    private int[] offsets;
+    // Number of used slots in offsets.
+    private int size;
 
     public PostingsEntry(int docID, int offset, double score) {
         this.docID = docID;
         this.score = score;
-        offsets = new ArrayList<Integer>();
-        offsets.add(offset);
+        offsets = new int[4];
+        offsets[0] = offset;
+        size = 1;
+    }
+
+    /** Creates an entry without any offsets. */
+    public PostingsEntry(int docID, double score) {
+        this.docID = docID;
+        this.score = score;
+        offsets = new int[4];
+        size = 0;
+    }
+
+    /** Creates an entry with a copy of the n sorted offsets starting at from. */
+    public PostingsEntry(int docID, double score, int[] offsets, int from, int n) {
+        this.docID = docID;
+        this.score = score;
+        this.offsets = Arrays.copyOfRange(offsets, from, from + Math.max(n, 1));
+        size = n;
     }
 
     public Object clone() throws CloneNotSupportedException {
         PostingsEntry pe = new PostingsEntry(docID, 0, 0);
-        pe.offsets = (ArrayList<Integer>) offsets.clone();
+        pe.offsets = offsets.clone();
+        pe.size = size;
         return pe;
     }
 
     /**  Number of postings in this entry  */
     public int size() {
-        return offsets.size();
+        return size;
     }
 
     /**  Returns the ith offset */
     public int get( int i ) {
-        return offsets.get( i );
+        return offsets[i];
     }
 
-    /** Adds an offset to the List of offsets, HAVE to maintain order in offsets. */
+    /**
+     *  Adds an offset to the List of offsets, HAVE to maintain order in offsets.
+     *  Offsets normally arrive in increasing order and are just appended,
+     *  otherwise the place for the offset is found by binary search.
+     */
     public void add_offset(int offset) {
-        int offset_index = 0;
-        for(int o : offsets) {
-            if(o == offset) { // This means that it already existed.
+        int offset_index = size;
+        if(size > 0 && offsets[size - 1] >= offset) {
+            offset_index = Arrays.binarySearch(offsets, 0, size, offset);
+            if(offset_index >= 0) { // This means that it already existed.
                 return;
-            } else if(o > offset) { // We have found the place for our offset.
-                break;
-            } else { // o < offset
-                offset_index++;
             }
+            offset_index = -(offset_index + 1);
         }
-        try {
-            offsets.add(offset_index, offset);
-        } catch (IndexOutOfBoundsException e) {
-            System.out.println("OFFSET_INDEX BROKEN");
+        if(size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(4, size * 2));
         }
+        System.arraycopy(offsets, offset_index, offsets, offset_index + 1, size - offset_index);
+        offsets[offset_index] = offset;
+        size++;
     }
 
     /**
-     *  PostingsEntries are compared by their score (only relevant 
+     *  PostingsEntries are compared by their score (only relevant
      *  in ranked retrieval).
      *
-     *  The comparison is defined so that entries will be put in 
+     *  The comparison is defined so that entries will be put in
      *  descending order.
      */
     public int compareTo( PostingsEntry other ) {
@@ -72,21 +95,36 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     }
 
     public String toString() {
-        return "" + docID + ":" + offsets;
+        return "" + docID + ":" + Arrays.toString(Arrays.copyOf(offsets, size));
+    }
+
+    /**
+     *  Writes the offsets in b that directly follow an offset in a into
+     *  result, and returns how many there are. result must have room
+     *  for min(a.size(), b.size()) offsets.
+     */
+    public static int is_followed_by(PostingsEntry a, PostingsEntry b, int[] result) {
+        return is_followed_by(a.offsets, 0, a.size, b.offsets, 0, b.size, result);
     }
-    
-    public static ArrayList<Integer> is_followed_by(PostingsEntry a, PostingsEntry b) {
-        ArrayList<Integer> result = new ArrayList<Integer>();
 
-        int i = 0;
-        int j = 0;
+    /**
+     *  Same as above, for the sorted offsets a[aFrom..aFrom+aSize) and
+     *  b[bFrom..bFrom+bSize).
+     */
+    public static int is_followed_by(int[] a, int aFrom, int aSize,
+                                     int[] b, int bFrom, int bSize, int[] result) {
+        int n = 0;
+        int i = aFrom;
+        int j = bFrom;
+        int aEnd = aFrom + aSize;
+        int bEnd = bFrom + bSize;
 
-        while(i < a.size() && j < b.size())
+        while(i < aEnd && j < bEnd)
         {
-            int ai = a.get(i);
-            int bj = b.get(j);
+            int ai = a[i];
+            int bj = b[j];
             if((bj - ai) == 1) {
-                result.add(bj);
+                result[n++] = bj;
                 i++;
                 j++;
             } else if( ai >= bj) {
@@ -95,6 +133,6 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
                 i++;
             }
         }
-        return result;
+        return n;
     }
 }
@@ -0,0 +1,33 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+/**
+ *   Sequential access to the postings of a term, independent of how
+ *   they are stored (plain arrays or compressed bytes).
+ */
+public interface PostingsIterator {
+
+    /** Moves to the next posting, returns false if there is none. */
+    public boolean next();
+
+    /** The docID of the current posting. */
+    public int docID();
+
+    /** The number of offsets of the current posting. */
+    public int tf();
+
+    /** Returns the kth offset of the current posting. */
+    public int offset( int k );
+
+    /**
+     *  Moves forward to the first posting whose docID is at least
+     *  target, staying put if the current posting already is. Uses the
+     *  skip pointers of the list to jump over long runs of postings.
+     *  Returns false if there is no such posting.
+     */
+    public boolean skipTo( int target );
+}
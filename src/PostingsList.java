@@ -1,26 +1,66 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   First version:  Johan Boye, 2010
  *   Second version: Johan Boye, 2012
- */  
+ */
 
 package ir;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
  *   A list of postings for a given word.
+ *
+ *   The postings are kept in parallel primitive arrays instead of one
+ *   object per posting. Posting i has the docID @code{docIDs[i]}, the
+ *   term frequency @code{tf[i]}, and its offsets are stored (sorted) in
+ *   @code{offsets[start[i]]} ... @code{offsets[start[i]+tf[i]-1]}.
+ *   The runs of offsets are laid out in the same order as the postings.
  */
 public class PostingsList implements Comparable<PostingsList>, Serializable {
-    
-    /** The postings list as a linked list, MUST be sorted. */   
-    public LinkedList<PostingsEntry> list = new LinkedList<PostingsEntry>();
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     *  Distance between skip pointers, or 0 to use the square root of
+     *  the length of the list.
+     */
+    public static int SKIP_INTERVAL = 0;
+
+    /** Number of postings in this list. */
+    private int size = 0;
+
+    /** The docIDs of the postings, MUST be sorted. */
+    private int[] docIDs = new int[INITIAL_CAPACITY];
+
+    /** The number of offsets of each posting. */
+    private int[] tf = new int[INITIAL_CAPACITY];
+
+    /** Index into @code{offsets} where the offsets of each posting start. */
+    private int[] start = new int[INITIAL_CAPACITY];
+
+    /** The offsets of all postings. */
+    private int[] offsets = new int[INITIAL_CAPACITY];
+
+    /** Number of used slots in @code{offsets}. */
+    private int numberOfOffsets = 0;
+
+    /** The score of each posting, only allocated for ranked results. */
+    private double[] scores = null;
+
+    /** Number of matching documents if this is a truncated result, or -1. */
+    private int totalHits = -1;
+
 
     public int compareTo(PostingsList other) {
         int a = size();
@@ -33,246 +73,884 @@ public class PostingsList implements Comparable<PostingsList>, Serializable {
         else
             return 0;
     }
+
     /**  Number of postings in this list  */
     public int size() {
-        return list.size();
+        return size;
+    }
+
+    /**
+     *  Number of documents that matched the query this list is the
+     *  result of. Larger than size() if only the top results were kept.
+     */
+    public int totalHits() {
+        return totalHits < 0 ? size : totalHits;
+    }
+
+    public void setTotalHits( int totalHits ) {
+        this.totalHits = totalHits;
+    }
+
+    /**  Estimated number of bytes of memory used by this list */
+    public long sizeInBytes() {
+        long n = 64 + 16 * 4 + 4L * (docIDs.length + tf.length + start.length + offsets.length);
+        if(scores != null)
+            n += 16 + 8L * scores.length;
+        return n;
+    }
+
+    /**  Returns the docID of the ith posting */
+    public int docID( int i ) {
+        return docIDs[i];
+    }
+
+    /**  Returns the number of offsets of the ith posting */
+    public int tf( int i ) {
+        return tf[i];
+    }
+
+    /**  Returns the kth offset of the ith posting */
+    public int offset( int i, int k ) {
+        return offsets[start[i] + k];
+    }
+
+    /**  Returns the score of the ith posting */
+    public double score( int i ) {
+        return scores == null ? 0 : scores[i];
+    }
+
+    /**  Sets the score of the ith posting */
+    public void setScore( int i, double score ) {
+        ensureScores();
+        scores[i] = score;
     }
 
-    /**  Returns the ith posting */
+    /**
+     *  Returns the ith posting as a PostingsEntry. The entry is a copy,
+     *  changing it does not change the list.
+     */
     public PostingsEntry get( int i ) {
-        return list.get( i );
+        return new PostingsEntry(docIDs[i], score(i), offsets, start[i], tf[i]);
+    }
+
+    /**
+     *  Returns the index of the posting with the given docID, or a
+     *  negative number if there is none (see Arrays.binarySearch).
+     */
+    public int indexOf( int docID ) {
+        return Arrays.binarySearch(docIDs, 0, size, docID);
+    }
+
+    /** The distance between skip pointers in a list of n postings. */
+    public static int skipInterval( int n ) {
+        if(SKIP_INTERVAL > 0)
+            return SKIP_INTERVAL;
+        return Math.max(1, (int) Math.sqrt(n));
+    }
+
+    /** Returns a new cursor positioned before the first posting. */
+    public Cursor cursor() {
+        return new Cursor();
     }
 
     public Object clone() throws CloneNotSupportedException {
         PostingsList pl = new PostingsList();
-        pl.list = (LinkedList<PostingsEntry>) list.clone();
+        pl.size = size;
+        pl.numberOfOffsets = numberOfOffsets;
+        pl.docIDs = docIDs.clone();
+        pl.tf = tf.clone();
+        pl.start = start.clone();
+        pl.offsets = offsets.clone();
+        if(scores != null)
+            pl.scores = scores.clone();
         return pl;
     }
 
     /** Merges the existing Postinglist (this) med other. */
     public void merge_pl(PostingsList other) {
-        int i = 0;
-        int j = 0;
-        while (i < size() && j < other.size()) {
-            PostingsEntry a = get(i);
-            PostingsEntry b = other.get(j);
-            int ai = a.docID;
-            int bj = b.docID;
-            if (bj < ai) {
-                list.add(i, b);
-                i++;
-                j++;
-            } else if (bj > ai) {
-                i++;
-            } else { // the same document. keep the old one.
-                i++;
-                j++;
-            }
-        }
-        while (j < other.size()) {
-            list.add(i, other.get(j));
-            j++;
-            i++;
-        }
+        merge(other, 0, false);
     }
+
     public void merge_pl(PostingsList other, double weight) {
+        merge(other, weight, true);
+    }
+
+    /**
+     *  Merges other into this list in one linear pass. If the same
+     *  document is in both lists, the one in this list is kept.
+     */
+    private void merge(PostingsList other, double weight, boolean scored) {
+        PostingsList result = new PostingsList();
+        result.ensureCapacity(size + other.size);
+        result.ensureOffsetCapacity(numberOfOffsets + other.numberOfOffsets);
+        if(scored)
+            result.ensureScores();
         int i = 0;
         int j = 0;
-        while (i < size() && j < other.size()) {
-            PostingsEntry a = get(i);
-            PostingsEntry b = other.get(j);
-            int ai = a.docID;
-            int bj = b.docID;
+        while (i < size && j < other.size) {
+            int ai = docIDs[i];
+            int bj = other.docIDs[j];
             if (bj < ai) {
-                b.score += weight;
-                list.add(i, b);
-                i++;
+                result.appendFrom(other, j, weight);
                 j++;
             } else if (bj > ai) {
+                result.appendFrom(this, i, 0);
                 i++;
             } else { // the same document. keep the old one.
-                a.score += b.score + weight;
+                result.appendFrom(this, i, scored ? other.score(j) + weight : 0);
                 i++;
                 j++;
             }
         }
-        while (j < other.size()) {
-            other.get(j).score += weight;
-            list.add(i, other.get(j));
-            j++;
+        while (i < size) {
+            result.appendFrom(this, i, 0);
             i++;
         }
+        while (j < other.size) {
+            result.appendFrom(other, j, weight);
+            j++;
+        }
+        size = result.size;
+        numberOfOffsets = result.numberOfOffsets;
+        docIDs = result.docIDs;
+        tf = result.tf;
+        start = result.start;
+        offsets = result.offsets;
+        scores = result.scores;
     }
 
-    /** Adds a new offset entry to the PostingsEntry that has the specified docID */
+    /**
+     *  Adds a new offset entry to the posting that has the specified docID.
+     *
+     *  The Indexer feeds docIDs and offsets in increasing order, so this
+     *  is almost always an append to the last posting or a new posting at
+     *  the end, which takes constant time. Anything else falls back to a
+     *  sorted insertion.
+     */
     public void add(int docID, int offset) {
-        // Find the PostingsEntry specified by the docID
-        PostingsEntry entry = null;
-        int list_index = 0; // Used to know where to insert the new PostingsEnty.
-        for(PostingsEntry pe : list) { // For each loop preserves order.
-            if(docID == pe.docID) {
-                entry = pe;
-                break;
-            } else if(pe.docID > docID) { // Were no PostingsEntry in list.
-                break;
-            } else {
-                list_index++;
-            }
+        if(size == 0 || docID > docIDs[size - 1]) {
+            append(docID, 0);
+            appendOffset(offset);
+            return;
         }
+        if(docID == docIDs[size - 1]
+           && (tf[size - 1] == 0 || offset > offsets[numberOfOffsets - 1])) {
+            appendOffset(offset);
+            return;
+        }
+        insert(docID, offset);
+    }
 
+    /**
+     *  Adds the sorted offsets of a term in a document. A document after
+     *  the last one in the list gets its posting appended in one go,
+     *  anything else is added one offset at a time.
+     */
+    public void add(int docID, int[] positions) {
+        if(size == 0 || docID > docIDs[size - 1]) {
+            append(docID, 0);
+            ensureOffsetCapacity(numberOfOffsets + positions.length);
+            System.arraycopy(positions, 0, offsets, numberOfOffsets, positions.length);
+            numberOfOffsets += positions.length;
+            tf[size - 1] = positions.length;
+            return;
+        }
+        for(int offset : positions)
+            add(docID, offset);
+    }
 
-        // There was no entry for the docID - now we should add it
-        if(entry == null) {
-            try {
-                list.add(list_index, new PostingsEntry(docID, offset, 0));
-            } catch (IndexOutOfBoundsException e) {
-                System.out.println("LIST_INDEX BROKEN");
-            }
-        } else {
-            entry.add_offset(offset);
+    /** Adds an offset anywhere in the list, keeping postings and offsets sorted. */
+    private void insert(int docID, int offset) {
+        int i = indexOf(docID);
+        if(i < 0) {
+            // There was no posting for the docID - now we should add it
+            i = -(i + 1);
+            ensureCapacity(size + 1);
+            int at = i < size ? start[i] : numberOfOffsets;
+            System.arraycopy(docIDs, i, docIDs, i + 1, size - i);
+            System.arraycopy(tf, i, tf, i + 1, size - i);
+            System.arraycopy(start, i, start, i + 1, size - i);
+            if(scores != null)
+                System.arraycopy(scores, i, scores, i + 1, size - i);
+            docIDs[i] = docID;
+            tf[i] = 0;
+            start[i] = at;
+            if(scores != null)
+                scores[i] = 0;
+            size++;
+        }
+        // Find the place for the offset among the offsets of the posting.
+        int from = start[i];
+        int to = from + tf[i];
+        int k = Arrays.binarySearch(offsets, from, to, offset);
+        if(k >= 0) { // This means that it already existed.
+            return;
+        }
+        k = -(k + 1);
+        ensureOffsetCapacity(numberOfOffsets + 1);
+        System.arraycopy(offsets, k, offsets, k + 1, numberOfOffsets - k);
+        offsets[k] = offset;
+        numberOfOffsets++;
+        tf[i]++;
+        for(int j = i + 1; j < size; j++) {
+            start[j]++;
         }
     }
 
+    /**
+     *  Appends a posting without any offsets. The docID MUST be larger
+     *  than every docID already in the list.
+     */
+    public void append(int docID, double score) {
+        ensureCapacity(size + 1);
+        docIDs[size] = docID;
+        tf[size] = 0;
+        start[size] = numberOfOffsets;
+        if(scores != null || score != 0) {
+            ensureScores();
+            scores[size] = score;
+        }
+        size++;
+    }
+
+    /** Appends a copy of the current posting of the iterator, with its offsets. */
+    public void appendPosting(PostingsIterator it) {
+        append(it.docID(), 0);
+        int n = it.tf();
+        ensureOffsetCapacity(numberOfOffsets + n);
+        for(int k = 0; k < n; k++) {
+            offsets[numberOfOffsets++] = it.offset(k);
+        }
+        tf[size - 1] = n;
+    }
+
+    /** Appends the ith posting of other, with its offsets, adding bonus to its score. */
+    private void appendFrom(PostingsList other, int i, double bonus) {
+        append(other.docIDs[i], other.score(i) + bonus);
+        int n = other.tf[i];
+        ensureOffsetCapacity(numberOfOffsets + n);
+        System.arraycopy(other.offsets, other.start[i], offsets, numberOfOffsets, n);
+        numberOfOffsets += n;
+        tf[size - 1] = n;
+    }
+
+    /** Appends an offset to the last posting. It MUST be larger than its other offsets. */
+    private void appendOffset(int offset) {
+        ensureOffsetCapacity(numberOfOffsets + 1);
+        offsets[numberOfOffsets++] = offset;
+        tf[size - 1]++;
+    }
+
     public static PostingsList union(PostingsList a, PostingsList b)
     {
         PostingsList result = new PostingsList();
-        int i = 0;
-        int j = 0;
         if(a == null && b == null)
         {
             return result;
         }
         else if(b == null)
         {
-            i = 0;
-            while(i < a.size())
-            {
-                result.list.addLast(new PostingsEntry(a.get(i).docID, 0, 0));
-                i++;
-            }
-            return result;
+            b = result;
         }
         else if(a == null)
         {
-            i = 0;
-            while(i < b.size())
-            {
-                result.list.addLast(new PostingsEntry(b.get(i).docID, 0, 0));
-                i++;
-            }
+            a = result;
         }
+        result = new PostingsList();
+        result.ensureCapacity(a.size + b.size);
 
-        while(i < a.size() && j < b.size())
+        int i = 0;
+        int j = 0;
+        while(i < a.size && j < b.size)
         {
-            int ai = a.get(i).docID;
-            int bj = b.get(j).docID;
+            int ai = a.docIDs[i];
+            int bj = b.docIDs[j];
             if(ai == bj)
             {
-                result.list.addLast(new PostingsEntry(ai, 0, 0));
+                result.append(ai, 0);
                 i++;
                 j++;
             }
             else if(ai < bj)
             {
-                result.list.addLast(new PostingsEntry(ai, 0, 0));
+                result.append(ai, 0);
                 i++;
             }
             else
             {
-                result.list.addLast(new PostingsEntry(bj, 0, 0));
+                result.append(bj, 0);
                 j++;
             }
         }
-        while(i < a.size())
+        while(i < a.size)
         {
-            result.list.addLast(new PostingsEntry(a.get(i).docID, 0, 0));
+            result.append(a.docIDs[i], 0);
             i++;
         }
-        while(j < b.size())
+        while(j < b.size)
         {
-            result.list.addLast(new PostingsEntry(b.get(j).docID, 0, 0));
+            result.append(b.docIDs[j], 0);
             j++;
         }
         return result;
     }
 
+    /**
+     *  Returns the documents of all the lists, with all their offsets,
+     *  as if they were the postings of a single term. Used for prefix
+     *  queries, where one query term matches many terms in the index.
+     */
+    public static PostingsList union_all(List<PostingsList> lists)
+    {
+        int n = 0;
+        for(PostingsList pl : lists)
+            n += Math.max(pl.numberOfOffsets, pl.size);
+        // Every posting sorts as docID << 32 | offset, and postings
+        // without offsets as docID << 32 | -1.
+        long[] postings = new long[n];
+        n = 0;
+        for(PostingsList pl : lists)
+        {
+            for(int i = 0; i < pl.size; i++)
+            {
+                long doc = (long)pl.docIDs[i] << 32;
+                if(pl.tf[i] == 0)
+                    postings[n++] = doc | 0xffffffffL;
+                for(int k = 0; k < pl.tf[i]; k++)
+                    postings[n++] = doc | pl.offsets[pl.start[i] + k];
+            }
+        }
+        Arrays.sort(postings, 0, n);
+
+        PostingsList result = new PostingsList();
+        for(int i = 0; i < n; i++)
+        {
+            if(i > 0 && postings[i] == postings[i - 1])
+                continue;
+            int docID = (int)(postings[i] >>> 32);
+            int offset = (int)postings[i];
+            if(result.size == 0 || result.docIDs[result.size - 1] != docID)
+                result.append(docID, 0);
+            if(offset != -1)
+                result.appendOffset(offset);
+        }
+        return result;
+    }
+
     public static PostingsList intersect_query(PostingsList a, PostingsList b) {
+        return intersect_query(a.cursor(), b.cursor());
+    }
+
+    /** Intersects two lists read through iterators, e.g. straight from compressed postings. */
+    public static PostingsList intersect_query(PostingsIterator a, PostingsIterator b) {
         PostingsList result = new PostingsList();
-        int i = 0;
-        int j = 0;
+        boolean hasA = a.next();
+        boolean hasB = b.next();
 
-        while(i < a.size() && j < b.size())
+        while(hasA && hasB)
         {
-            int ai = a.get(i).docID;
-            int bj = b.get(j).docID;
+            int ai = a.docID();
+            int bj = b.docID();
             if(ai == bj){
-                result.list.add(new PostingsEntry(ai,0,0));
-                i++;
-                j++;
+                result.append(ai, 0);
+                hasA = a.next();
+                hasB = b.next();
             } else if(ai < bj) {
-                i++;
+                hasA = a.skipTo(bj);
             } else {
-                j++;
+                hasB = b.skipTo(ai);
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Intersects all lists in one pass and writes the matching docIDs
+     *  into buffer, returning how many there are. The lists MUST be
+     *  sorted by size, and buffer must have room for lists[0].size()
+     *  docIDs. The rarest list drives, the others are searched by
+     *  galloping from where the previous match left them.
+     */
+    public static int intersect_all(PostingsList[] lists, int[] buffer) {
+        if(lists.length == 0)
+            return 0;
+        PostingsList rarest = lists[0];
+        int[] pos = new int[lists.length];
+        int n = 0;
+        int i = 0;
+        candidates:
+        while(i < rarest.size) {
+            int docID = rarest.docIDs[i];
+            for(int l = 1; l < lists.length; l++) {
+                PostingsList pl = lists[l];
+                int p = pl.gallop(pos[l], docID);
+                pos[l] = p;
+                if(p == pl.size)
+                    return n;
+                if(pl.docIDs[p] != docID) {
+                    // No match, let the rarest list catch up with this one.
+                    i = rarest.gallop(i + 1, pl.docIDs[p]);
+                    continue candidates;
+                }
             }
+            buffer[n++] = docID;
+            i++;
         }
+        return n;
+    }
+
+    /**
+     *  Returns the index of the first posting at or after from whose
+     *  docID is at least target, or size() if there is none. Probes
+     *  from, from+1, from+2, from+4, ... and then binary searches the
+     *  last interval, so the cost is logarithmic in the distance moved.
+     */
+    private int gallop(int from, int target) {
+        if(from >= size || docIDs[from] >= target)
+            return from;
+        int bound = 1;
+        while(from + bound < size && docIDs[from + bound] < target)
+            bound *= 2;
+        int lo = (bound == 1 ? from : from + bound / 2) + 1;
+        int hi = Math.min(from + bound + 1, size);
+        int k = Arrays.binarySearch(docIDs, lo, hi, target);
+        return k >= 0 ? k : -(k + 1);
+    }
+
+    /**
+     *  Returns a copy of this list where every docID d is replaced by
+     *  map[d], sorted by the new docIDs.
+     */
+    public PostingsList remap(int[] map) {
+        int[] newIDs = new int[size];
+        boolean sorted = true;
+        for(int i = 0; i < size; i++) {
+            newIDs[i] = map[docIDs[i]];
+            if(i > 0 && newIDs[i] <= newIDs[i - 1])
+                sorted = false;
+        }
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++)
+            order[i] = i;
+        if(!sorted) {
+            // Sort by descending negated docID, i.e. ascending docID.
+            double[] key = new double[size];
+            for(int i = 0; i < size; i++)
+                key[i] = -newIDs[i];
+            mergeSort(order, new int[size], 0, size, key);
+        }
+        PostingsList result = new PostingsList();
+        result.ensureCapacity(size);
+        result.ensureOffsetCapacity(numberOfOffsets);
+        for(int i : order) {
+            if(result.size > 0 && result.docIDs[result.size - 1] == newIDs[i])
+                continue; // The same document twice, keep the first.
+            result.appendFrom(this, i, 0);
+            result.docIDs[result.size - 1] = newIDs[i];
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the postings whose docIDs are not set in deleted, or this
+     *  list itself if none of them are.
+     */
+    public PostingsList without(BitSet deleted) {
+        int i = 0;
+        while(i < size && !deleted.get(docIDs[i]))
+            i++;
+        if(i == size)
+            return this;
+        PostingsList result = new PostingsList();
+        result.ensureCapacity(size);
+        result.ensureOffsetCapacity(numberOfOffsets);
+        for(int j = 0; j < size; j++) {
+            if(!deleted.get(docIDs[j]))
+                result.appendFrom(this, j, 0);
+        }
+        return result;
+    }
+
+    /** Creates a list of postings without offsets from the first n docIDs. */
+    public static PostingsList from_docIDs(int[] docIDs, int n) {
+        PostingsList result = new PostingsList();
+        result.ensureCapacity(n);
+        for(int i = 0; i < n; i++)
+            result.append(docIDs[i], 0);
         return result;
     }
 
     public static PostingsList phrase_query(PostingsList a, PostingsList b) {
         PostingsList result = new PostingsList();
+        int[] followers = new int[INITIAL_CAPACITY];
         int i = 0;
         int j = 0;
 
-        while(i < a.size() && j < b.size())
+        while(i < a.size && j < b.size)
         {
-            int ai = a.get(i).docID;
-            int bj = b.get(j).docID;
+            int ai = a.docIDs[i];
+            int bj = b.docIDs[j];
             if(ai == bj){
-                ArrayList<Integer> offsets = PostingsEntry.is_followed_by(a.get(i), b.get(j));
-                for( int off : offsets) {
-                    result.add(ai, off);
+                int n = Math.min(a.tf[i], b.tf[j]);
+                if(followers.length < n)
+                    followers = new int[Math.max(n, followers.length * 2)];
+                n = PostingsEntry.is_followed_by(a.offsets, a.start[i], a.tf[i],
+                                                 b.offsets, b.start[j], b.tf[j], followers);
+                if(n > 0) {
+                    result.append(ai, 0);
+                    result.ensureOffsetCapacity(result.numberOfOffsets + n);
+                    System.arraycopy(followers, 0, result.offsets, result.numberOfOffsets, n);
+                    result.numberOfOffsets += n;
+                    result.tf[result.size - 1] = n;
                 }
                 i++;
                 j++;
             } else if(ai < bj) {
-                i++;
+                i = a.gallop(i + 1, bj);
             } else {
-                j++;
+                j = b.gallop(j + 1, ai);
+            }
+        }
+        return result;
+    }
+
+    /** Phrase query on two lists read through iterators. */
+    public static PostingsList phrase_query(PostingsIterator a, PostingsIterator b) {
+        PostingsList result = new PostingsList();
+        boolean hasA = a.next();
+        boolean hasB = b.next();
+
+        while(hasA && hasB)
+        {
+            int ai = a.docID();
+            int bj = b.docID();
+            if(ai == bj){
+                // Walk the offsets of both postings, keeping the offsets
+                // in b that directly follow an offset in a.
+                boolean added = false;
+                int k = 0;
+                int kEnd = a.tf();
+                int l = 0;
+                int lEnd = b.tf();
+                while(k < kEnd && l < lEnd) {
+                    int ak = a.offset(k);
+                    int bl = b.offset(l);
+                    if((bl - ak) == 1) {
+                        if(!added) {
+                            result.append(ai, 0);
+                            added = true;
+                        }
+                        result.appendOffset(bl);
+                        k++;
+                        l++;
+                    } else if(ak >= bl) {
+                        l++;
+                    } else {
+                        k++;
+                    }
+                }
+                hasA = a.next();
+                hasB = b.next();
+            } else if(ai < bj) {
+                hasA = a.skipTo(bj);
+            } else {
+                hasB = b.skipTo(ai);
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Matches a whole phrase in one pass. terms[k] holds the postings
+     *  of the kth word of the phrase, or null if any word may stand
+     *  there. Leading nulls are ignored.
+     *
+     *  The documents are first intersected, driven by the rarest list
+     *  and galloping in the others. For each common document the
+     *  offsets of all terms, shifted by their place in the phrase, are
+     *  then merged once to find where the phrase starts. The result
+     *  holds each matching docID with the offset of its first match.
+     */
+    public static PostingsList phrase_all(PostingsList[] terms) {
+        PostingsList result = new PostingsList();
+        int m = 0;
+        int first = -1;
+        for(int k = 0; k < terms.length; k++) {
+            if(terms[k] != null) {
+                m++;
+                if(first < 0)
+                    first = k;
+            }
+        }
+        if(m == 0)
+            return result;
+
+        // The non-null lists sorted by size, with their place in the phrase.
+        PostingsList[] lists = new PostingsList[m];
+        int[] rel = new int[m];
+        int l = 0;
+        for(int k = first; k < terms.length; k++) {
+            if(terms[k] == null)
+                continue;
+            int at = l++;
+            while(at > 0 && lists[at - 1].size > terms[k].size) {
+                lists[at] = lists[at - 1];
+                rel[at] = rel[at - 1];
+                at--;
+            }
+            lists[at] = terms[k];
+            rel[at] = k - first;
+        }
+
+        PostingsList rarest = lists[0];
+        int[] pos = new int[m];
+        int[] cursor = new int[m];
+        int i = 0;
+        candidates:
+        while(i < rarest.size) {
+            int docID = rarest.docIDs[i];
+            for(l = 1; l < m; l++) {
+                PostingsList pl = lists[l];
+                int p = pl.gallop(pos[l], docID);
+                pos[l] = p;
+                if(p == pl.size)
+                    return result;
+                if(pl.docIDs[p] != docID) {
+                    i = rarest.gallop(i + 1, pl.docIDs[p]);
+                    continue candidates;
+                }
             }
+            pos[0] = i;
+            int match = first_match(lists, pos, rel, cursor);
+            if(match != Integer.MIN_VALUE) {
+                result.append(docID, 0);
+                result.appendOffset(match);
+            }
+            i++;
         }
         return result;
     }
 
+    /**
+     *  Finds the first s such that lists[l] has the offset s + rel[l] in
+     *  its posting pos[l], for every l. Returns Integer.MIN_VALUE if
+     *  there is none. cursor is scratch space of the same length.
+     */
+    private static int first_match(PostingsList[] lists, int[] pos, int[] rel, int[] cursor) {
+        int m = lists.length;
+        for(int l = 0; l < m; l++) {
+            // A posting without offsets, as from_docIDs builds, has no match.
+            if(lists[l].tf[pos[l]] == 0)
+                return Integer.MIN_VALUE;
+            cursor[l] = lists[l].start[pos[l]];
+        }
+        int s = lists[0].offsets[cursor[0]] - rel[0];
+        int agreed = 0;
+        int l = 0;
+        while(true) {
+            PostingsList pl = lists[l];
+            int end = pl.start[pos[l]] + pl.tf[pos[l]];
+            int k = cursor[l];
+            while(k < end && pl.offsets[k] - rel[l] < s)
+                k++;
+            if(k == end)
+                return Integer.MIN_VALUE;
+            cursor[l] = k;
+            int candidate = pl.offsets[k] - rel[l];
+            if(candidate == s) {
+                if(++agreed == m)
+                    return s;
+            } else {
+                s = candidate;
+                agreed = 1;
+            }
+            l = (l + 1) % m;
+        }
+    }
+
     public static PostingsList add_wildcard(PostingsList a)
     {
         PostingsList result = new PostingsList();
-        int i = 0;
-        
-        while(i < a.size())
+        result.ensureCapacity(a.size);
+        result.ensureOffsetCapacity(a.numberOfOffsets);
+        for(int i = 0; i < a.size; i++)
         {
-            for(int off : a.get(i).offsets)
+            result.append(a.docIDs[i], 0);
+            for(int k = 0; k < a.tf[i]; k++)
             {
-                result.add(a.get(i).docID, off + 1);
+                result.appendOffset(a.offsets[a.start[i] + k] + 1);
             }
-            i++;
         }
         return result;
     }
 
     public void addScore(int docID, double newScore)
     {
-        for( PostingsEntry pe : list )
+        int i = indexOf(docID);
+        if(i >= 0)
         {
-            if(docID == pe.docID)
-            {
-                pe.score += newScore;
-            }
+            ensureScores();
+            scores[i] += newScore;
         }
-        return;
+    }
+
+    /**
+     *  Sorts the postings by descending score. Postings with equal
+     *  score keep their relative order.
+     */
+    public void sortByScore() {
+        if(scores == null || size < 2)
+            return;
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++)
+            order[i] = i;
+        mergeSort(order, new int[size], 0, size, scores);
+
+        PostingsList sorted = new PostingsList();
+        sorted.ensureCapacity(size);
+        sorted.ensureOffsetCapacity(numberOfOffsets);
+        sorted.ensureScores();
+        for(int i : order)
+            sorted.appendFrom(this, i, 0);
+        docIDs = sorted.docIDs;
+        tf = sorted.tf;
+        start = sorted.start;
+        offsets = sorted.offsets;
+        scores = sorted.scores;
+    }
+
+    /** Stable sort of order[from..to) by descending key. */
+    private static void mergeSort(int[] order, int[] tmp, int from, int to, double[] key) {
+        if(to - from < 2)
+            return;
+        int mid = (from + to) >>> 1;
+        mergeSort(order, tmp, from, mid, key);
+        mergeSort(order, tmp, mid, to, key);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while(i < mid && j < to) {
+            if(key[order[j]] > key[order[i]])
+                tmp[k++] = order[j++];
+            else
+                tmp[k++] = order[i++];
+        }
+        while(i < mid)
+            tmp[k++] = order[i++];
+        while(j < to)
+            tmp[k++] = order[j++];
+        System.arraycopy(tmp, from, order, from, to - from);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity <= docIDs.length)
+            return;
+        int n = Math.max(capacity, docIDs.length * 2);
+        docIDs = Arrays.copyOf(docIDs, n);
+        tf = Arrays.copyOf(tf, n);
+        start = Arrays.copyOf(start, n);
+        if(scores != null)
+            scores = Arrays.copyOf(scores, n);
+    }
+
+    private void ensureOffsetCapacity(int capacity) {
+        if(capacity > offsets.length)
+            offsets = Arrays.copyOf(offsets, Math.max(capacity, offsets.length * 2));
+    }
+
+    private void ensureScores() {
+        if(scores == null)
+            scores = new double[docIDs.length];
+    }
+
+    /** Lists are serialized in the compressed format of CompressedPostings. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        byte[] bytes = CompressedPostings.encode(this).bytes();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        PostingsList pl = CompressedPostings.wrap(bytes).decode();
+        size = pl.size;
+        numberOfOffsets = pl.numberOfOffsets;
+        docIDs = pl.docIDs;
+        tf = pl.tf;
+        start = pl.start;
+        offsets = pl.offsets;
+        // Field initializers do not run when a list is deserialized.
+        scores = null;
+        totalHits = -1;
     }
 
     public String toString() {
-        return list.toString();
-        //return "" +size();
+        StringBuilder sb = new StringBuilder("[");
+        for(int i = 0; i < size; i++) {
+            if(i > 0)
+                sb.append(", ");
+            sb.append(get(i));
+        }
+        return sb.append("]").toString();
+    }
+
+
+    /**
+     *  Cursor-style iteration over the postings of the list, without
+     *  creating an object per posting.
+     */
+    public class Cursor implements PostingsIterator {
+
+        /** Index of the current posting. */
+        private int i = -1;
+
+        /** Moves to the next posting, returns false if there is none. */
+        public boolean next() {
+            if(i < size)
+                i++;
+            return i < size;
+        }
+
+        /** Index of the current posting in the list. */
+        public int index() {
+            return i;
+        }
+
+        public int docID() {
+            return docIDs[i];
+        }
+
+        public int tf() {
+            return tf[i];
+        }
+
+        /** Returns the kth offset of the current posting. */
+        public int offset(int k) {
+            return offsets[start[i] + k];
+        }
+
+        public double score() {
+            return PostingsList.this.score(i);
+        }
+
+        /**
+         *  The skip pointers of an array are implicit: every
+         *  skipInterval(size) postings from the current one.
+         */
+        public boolean skipTo(int target) {
+            if(i < 0)
+                i = 0;
+            if(i >= size)
+                return false;
+            if(docIDs[i] >= target)
+                return true;
+            int step = skipInterval(size);
+            while(i + step < size && docIDs[i + step] <= target)
+                i += step;
+            while(i < size && docIDs[i] < target)
+                i++;
+            return i < size;
+        }
     }
 }
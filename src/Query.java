@@ -88,9 +88,9 @@ public class Query {
         {
             if(docIsRelevant[i])
             {
-                int docID = results.get(i).docID;
+                int docID = results.docID(i);
                 HashSet<String> docTerms = indexer.index.terms.get(docID);
-                int size = indexer.index.docLengths.get(""+docID);
+                int size = indexer.index.getDocumentLength(docID);
                 for(String term : docTerms)
                 {
                     PostingsList pl = indexer.index.getPostings(term);
@@ -101,13 +101,10 @@ public class Query {
                     }
                     // GET THE TF
                     double tf = 0;
-                    for( PostingsEntry pe : pl.list)
+                    int index = pl.indexOf(docID);
+                    if(index >= 0)
                     {
-                        if(pe.docID == docID)
-                        {
-                            tf = pe.offsets.size();
-                            break;
-                        }
+                        tf = pl.tf(index);
                     }
                     tf = tf / size; // Normalize
 
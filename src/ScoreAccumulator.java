@@ -0,0 +1,111 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+/**
+ *   Accumulates document scores term-at-a-time in a flat double[]
+ *   indexed by docID. The documents that have been touched are kept in
+ *   a compact list together with a bitset, so the accumulator can be
+ *   reused and cleared in time proportional to the last query.
+ */
+public class ScoreAccumulator {
+
+    private double[] scores;
+
+    /** One bit per slot, set if the slot is in touched. */
+    private long[] seen;
+
+    /** The touched slots, in the order they were first touched. */
+    private int[] touched = new int[16];
+    private int numberTouched = 0;
+
+
+    /** Creates an accumulator for the dense docIDs 0 .. capacity-1. It grows if needed. */
+    public ScoreAccumulator( int capacity ) {
+        scores = new double[Math.max( capacity, 16 )];
+        seen = new long[(scores.length + 63) / 64];
+    }
+
+    /**
+     *  Adds to the score of a document. Adding 0 makes the document a
+     *  candidate without changing its score. Throws an
+     *  IllegalArgumentException if the docID is negative.
+     */
+    public void add( int docID, double score ) {
+        int slot = slot( docID );
+        if ( (seen[slot >>> 6] & (1L << slot)) == 0 ) {
+            seen[slot >>> 6] |= 1L << slot;
+            if ( numberTouched == touched.length ) {
+                touched = Arrays.copyOf( touched, numberTouched * 2 );
+            }
+            touched[numberTouched++] = slot;
+        }
+        scores[slot] += score;
+    }
+
+    /** Number of documents touched since the last clear(). */
+    public int size() {
+        return numberTouched;
+    }
+
+    /** The docID of the ith touched document. */
+    public int docID( int i ) {
+        return touched[i];
+    }
+
+    public double score( int i ) {
+        return scores[touched[i]];
+    }
+
+    public void setScore( int i, double score ) {
+        scores[touched[i]] = score;
+    }
+
+    /** Returns the touched documents as a list sorted by docID. */
+    public PostingsList toPostingsList() {
+        Arrays.sort( touched, 0, numberTouched );
+        PostingsList result = new PostingsList();
+        for ( int i=0; i<numberTouched; i++ ) {
+            result.append( docID( i ), score( i ));
+        }
+        return result;
+    }
+
+    /** Offers every touched document to the collector. */
+    public void collect( TopKCollector collector ) {
+        for ( int i=0; i<numberTouched; i++ ) {
+            collector.collect( docID( i ), score( i ));
+        }
+    }
+
+    /** Forgets all scores, touching only the slots used since the last clear. */
+    public void clear() {
+        for ( int i=0; i<numberTouched; i++ ) {
+            int slot = touched[i];
+            scores[slot] = 0;
+            seen[slot >>> 6] &= ~(1L << slot);
+        }
+        numberTouched = 0;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private int slot( int docID ) {
+        if ( docID < 0 ) {
+            throw new IllegalArgumentException( "Negative docID " + docID );
+        }
+        if ( docID >= scores.length ) {
+            int n = Math.max( docID + 1, scores.length * 2 );
+            scores = Arrays.copyOf( scores, n );
+            seen = Arrays.copyOf( seen, (n + 63) / 64 );
+        }
+        return docID;
+    }
+}
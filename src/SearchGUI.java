@@ -13,6 +13,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.LinkedList;
 import java.util.StringTokenizer;
 import java.awt.*;
@@ -38,12 +39,18 @@ public class SearchGUI extends JFrame {
     /**  Directories that should be indexed. */
     LinkedList<String> dirNames = new LinkedList<String>();
 
+    /**  Files and directories that should be removed from the index. */
+    LinkedList<String> removedNames = new LinkedList<String>();
+
     /**  Indices to be retrieved from disk. */
     LinkedList<String> indexFiles = new LinkedList<String>();
 
     /** Maximum number of indices we can read from disk. */
     public static final int MAX_NUMBER_OF_INDEX_FILES = 10;
 
+    /** Maximum number of ranked results that are retrieved and shown. */
+    public static final int MAX_NUMBER_OF_RESULTS = 100;
+
     /**  The query type (either intersection, phrase, or ranked). */
     int queryType = Index.INTERSECTION_QUERY;
 
@@ -179,22 +186,22 @@ public class SearchGUI extends JFrame {
                 // we don't want to search at the same time we're indexing new files
                 // (this might corrupt the index).
                 synchronized ( indexLock ) {
-                    results = indexer.index.search( query, queryType, rankingType );
+                    results = indexer.index.search( query, queryType, rankingType, MAX_NUMBER_OF_RESULTS );
                 }
                 StringBuffer buf = new StringBuffer();
                 if ( results != null ) {
-                    buf.append( "\nFound " + results.size() + " matching document(s)\n\n" );
+                    buf.append( "\nFound " + results.totalHits() + " matching document(s)\n\n" );
                     for ( int i=0; i<results.size(); i++ ) {
                         buf.append( " " + i + ". " );
-                        String filename = indexer.index.docIDs.get( "" + results.get(i).docID );
+                        String filename = indexer.index.getDocumentPath( results.docID(i) );
                         if ( filename == null ) {
-                            buf.append( "" + results.get(i).docID );
+                            buf.append( "" + results.docID(i) );
                         }
                         else {
                             buf.append( filename );
                         }
                         if ( queryType == Index.RANKED_QUERY ) {
-                            buf.append( "   " + String.format( "%.5f", results.get(i).score ));
+                            buf.append( "   " + String.format( "%.5f", results.score(i) ));
                         }
                         buf.append( "\n" );
                     }
@@ -228,20 +235,20 @@ public class SearchGUI extends JFrame {
                     // synchronized since we don't want to search at the same time we're indexing new files
                     // (this might corrupt the index).
                     synchronized ( indexLock ) {
-                        results = indexer.index.search( query, queryType, rankingType );
+                        results = indexer.index.search( query, queryType, rankingType, MAX_NUMBER_OF_RESULTS );
                     }
                     buf.append( "\nSearch after relevance feedback:\n" );
-                    buf.append( "\nFound " + results.size() + " matching document(s)\n\n" );
+                    buf.append( "\nFound " + results.totalHits() + " matching document(s)\n\n" );
                     for ( int i=0; i<results.size(); i++ ) {
                         buf.append( " " + i + ". " );
-                        String filename = indexer.index.docIDs.get( "" + results.get(i).docID );
+                        String filename = indexer.index.getDocumentPath( results.docID(i) );
                         if ( filename == null ) {
-                            buf.append( "" + results.get(i).docID );
+                            buf.append( "" + results.docID(i) );
                         }
                         else {
                             buf.append( filename );
                         }
-                        buf.append( "   " + String.format( "%.5f", results.get(i).score ) + "\n" );
+                        buf.append( "   " + String.format( "%.5f", results.score(i) ) + "\n" );
                     }
                 }
                 else {
@@ -328,10 +335,16 @@ public class SearchGUI extends JFrame {
     private void index() {
         synchronized ( indexLock ) {
             resultWindow.setText( "\n  Indexing, please wait..." );
+            for ( int i=0; i<removedNames.size(); i++ ) {
+                indexer.removeFiles( new File( removedNames.get( i )));
+            }
             for ( int i=0; i<dirNames.size(); i++ ) {
                 File dokDir = new File( dirNames.get( i ));
                 indexer.processFiles( dokDir );
             }
+            if ( indexer.pdfExtractor.documents() > 0 ) {
+                System.err.println( indexer.pdfExtractor );
+            }
             resultWindow.setText( "\n  Done!" );
         }
     };
@@ -362,6 +375,13 @@ public class SearchGUI extends JFrame {
                     dirNames.add( args[i++] );
                 }
             }
+            else if ( "-r".equals( args[i] )) {
+                // Files or directories to remove from the MegaIndex
+                i++;
+                if ( i < args.length ) {
+                    removedNames.add( args[i++] );
+                }
+            }
             else if ( "-m".equals( args[i] )) {
                 i++;
                 indexType = Index.MEGA_INDEX;
@@ -371,11 +391,94 @@ public class SearchGUI extends JFrame {
                 i++;
                 indexType = Index.BIWORD_INDEX;
             }
+            else if("-c".equals(args[i]))
+            {
+                i++;
+                indexType = Index.CONCURRENT_HASHED_INDEX;
+            }
             else if("-x".equals(args[i]))
             {
                 i++;
                 indexType = Index.DUAL_INDEX;
             }
+            else if("-mb".equals(args[i]))
+            {
+                // Memory budget of the MegaIndex buffer in megabytes
+                i++;
+                if ( i < args.length ) {
+                    MegaIndex.MEMORY_BUDGET = Long.parseLong( args[i++] ) << 20;
+                }
+            }
+            else if("-cb".equals(args[i]))
+            {
+                // Size of the MegaIndex postings cache in megabytes
+                i++;
+                if ( i < args.length ) {
+                    MegaIndex.CACHE_BYTES = Long.parseLong( args[i++] ) << 20;
+                }
+            }
+            else if("-lfu".equals(args[i]))
+            {
+                // Evict the least frequently used postings from the cache
+                i++;
+                MegaIndex.CACHE_POLICY = PostingsCache.LFU;
+            }
+            else if("-threads".equals(args[i]))
+            {
+                // Number of threads that read and tokenize the files
+                i++;
+                if ( i < args.length ) {
+                    Indexer.THREADS = Integer.parseInt( args[i++] );
+                }
+            }
+            else if("-charset".equals(args[i]))
+            {
+                // Charset of the text files, UTF-8 by default
+                i++;
+                if ( i < args.length ) {
+                    Indexer.CHARSET = Charset.forName( args[i++] );
+                }
+            }
+            else if("-pdfthreads".equals(args[i]))
+            {
+                // Number of threads that extract the text of PDF files
+                i++;
+                if ( i < args.length ) {
+                    PDFExtractor.THREADS = Integer.parseInt( args[i++] );
+                }
+            }
+            else if("-pdftimeout".equals(args[i]))
+            {
+                // Seconds a PDF file may take before it is given up
+                i++;
+                if ( i < args.length ) {
+                    PDFExtractor.TIMEOUT = 1000L * Integer.parseInt( args[i++] );
+                }
+            }
+            else if("-pdfmax".equals(args[i]))
+            {
+                // Size in MB of the largest PDF file that is indexed
+                i++;
+                if ( i < args.length ) {
+                    PDFExtractor.MAX_BYTES = (long) Integer.parseInt( args[i++] ) << 20;
+                }
+            }
+            else if("-warm".equals(args[i]))
+            {
+                // Number of terms to load into the cache at startup
+                i++;
+                if ( i < args.length ) {
+                    MegaIndex.WARM_UP_TERMS = Integer.parseInt( args[i++] );
+                }
+            }
+            else if("-log".equals(args[i]))
+            {
+                // Query log whose most frequent terms are loaded at startup
+                i++;
+                if ( i < args.length ) {
+                    MegaIndex.WARM_UP_LOG = args[i++];
+                }
+            }
             else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
@@ -386,7 +489,7 @@ public class SearchGUI extends JFrame {
         //  Therefore the access to the index must be synchronized.
         synchronized ( indexLock ) {
             if ( indexType == Index.HASHED_INDEX || indexType == Index.DUAL_INDEX 
-                    || indexType == Index.BIWORD_INDEX) {
+                    || indexType == Index.BIWORD_INDEX || indexType == Index.CONCURRENT_HASHED_INDEX) {
                 resultWindow.setText("Hej Christian!");
                 indexer = new Indexer(indexType);
             }
@@ -0,0 +1,175 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+/**
+ *   An immutable index segment on disk, opened with FileChannel.map.
+ *
+ *   The postings file (name.post) holds the postings of every term in
+ *   the compressed format of CompressedPostings, one list after the
+ *   other. The dictionary file (name.dict) is a TermDictionary with the
+ *   terms in sorted order and the positions of their postings.
+ *
+ *   Postings are decoded straight from the mapped buffer, so opening a
+ *   segment only reads the block index of the dictionary, and the
+ *   postings are served from the page cache.
+ */
+public class Segment {
+
+    public static final String DICT_SUFFIX = ".dict";
+    public static final String POST_SUFFIX = ".post";
+
+    /** The sorted terms, their document frequencies and postings positions. */
+    private final TermDictionary dictionary;
+
+    /** The mapped dictionary and postings files. */
+    private final MappedByteBuffer dictionaryFile;
+    private final MappedByteBuffer postings;
+
+
+    /** Opens the segment called name in the directory dir. */
+    public Segment( String dir, String name ) throws IOException {
+        dictionaryFile = map( new File( dir, name + DICT_SUFFIX ));
+        dictionary = new TermDictionary( dictionaryFile );
+        postings = map( new File( dir, name + POST_SUFFIX ));
+    }
+
+    /** Returns true if the segment called name exists in dir. */
+    public static boolean exists( String dir, String name ) {
+        return new File( dir, name + DICT_SUFFIX ).exists()
+            && new File( dir, name + POST_SUFFIX ).exists();
+    }
+
+    /** Reads the dictionary file into the page cache. */
+    public void loadDictionary() {
+        dictionaryFile.load();
+    }
+
+    /** Size of the postings file in bytes. */
+    public long size() {
+        return postings.limit();
+    }
+
+    /** Number of terms in the segment. */
+    public int numberOfTerms() {
+        return dictionary.size();
+    }
+
+    /** The term dictionary of the segment. */
+    public TermDictionary dictionary() {
+        return dictionary;
+    }
+
+    /** Returns the ordinal of a term, or a negative number if it is not in the segment. */
+    public int ordinal( String term ) {
+        return dictionary.ordinal( term );
+    }
+
+    /** The term with the given ordinal. */
+    public String term( int ordinal ) {
+        return dictionary.term( ordinal );
+    }
+
+    /** Number of documents containing the term with the given ordinal. */
+    public int df( int ordinal ) {
+        return dictionary.df( ordinal );
+    }
+
+    /** Adds the terms starting with prefix to result, in sorted order. */
+    public void terms( String prefix, Collection<String> result ) {
+        int[] range = dictionary.prefixRange( prefix );
+        if ( range[0] < range[1] ) {
+            TermDictionary.Cursor c = dictionary.cursor();
+            c.seek( range[0] );
+            do {
+                result.add( c.term() );
+            } while ( c.next() && c.ordinal() < range[1] );
+        }
+    }
+
+    /** Returns an iterator decoding the postings of a term, or null if it is not in the segment. */
+    public PostingsIterator iterator( String term ) {
+        int ordinal = ordinal( term );
+        return ordinal < 0 ? null : iterator( ordinal );
+    }
+
+    public PostingsIterator iterator( int ordinal ) {
+        return new CompressedPostings.Decoder( postings, dictionary.position( ordinal ));
+    }
+
+    /** Returns the decoded postings of a term, or null if it is not in the segment. */
+    public PostingsList getPostings( String term ) {
+        int ordinal = ordinal( term );
+        return ordinal < 0 ? null : getPostings( ordinal );
+    }
+
+    public PostingsList getPostings( int ordinal ) {
+        PostingsList pl = new PostingsList();
+        PostingsIterator it = iterator( ordinal );
+        while ( it.next() ) {
+            pl.appendPosting( it );
+        }
+        return pl;
+    }
+
+    /** The whole postings file, positioned at its start. */
+    ByteBuffer postings() {
+        return postings.duplicate();
+    }
+
+    /** Returns the compressed postings of a term as they are stored. */
+    public byte[] rawPostings( int ordinal ) {
+        int from = dictionary.position( ordinal );
+        int to = ordinal + 1 < dictionary.size() ? dictionary.position( ordinal + 1 ) : postings.limit();
+        byte[] bytes = new byte[to - from];
+        ByteBuffer b = postings.duplicate();
+        b.position( from );
+        b.get( bytes );
+        return bytes;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Maps a whole file read-only. */
+    static MappedByteBuffer map( File f ) throws IOException {
+        return map( f, -1 );
+    }
+
+    /**
+     *  Maps the first size bytes of a file read-only, or the whole file
+     *  if size is negative.
+     */
+    static MappedByteBuffer map( File f, long size ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( f, "r" );
+        try {
+            FileChannel channel = raf.getChannel();
+            if ( size < 0 ) {
+                size = channel.size();
+            }
+            else if ( channel.size() < size ) {
+                throw new IOException( f + " is shorter than " + size + " bytes" );
+            }
+            if ( size > Integer.MAX_VALUE ) {
+                throw new IOException( f + " is too large to be mapped" );
+            }
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+        }
+        finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+}
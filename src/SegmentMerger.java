@@ -0,0 +1,338 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *   Merges several segments into a new one in a single pass.
+ *
+ *   The term dictionaries of the segments are walked in parallel
+ *   through a priority queue, so terms come out in sorted order and
+ *   only the postings of the current term are held in memory. The
+ *   docIDs of segment k are replaced by docMaps[k][docID], or kept.
+ *
+ *   When every map is increasing and segment k's documents all come
+ *   before segment k+1's, which is the case when the segments index
+ *   different documents, the postings of a term are streamed from the
+ *   mapped files straight into the new segment. A term found in one
+ *   segment whose docIDs do not change is copied byte for byte.
+ *   Otherwise the postings are decoded, remapped and merged, and a
+ *   document found in several segments keeps the postings of the first.
+ *
+ *   The postings of deleted documents can be dropped on the way, which
+ *   also takes the decoding path.
+ *
+ *   A large merge is split into term ranges that are merged in parallel
+ *   on a ForkJoinPool, each into a run of its own. The runs are then
+ *   concatenated into the new segment, which only copies their files.
+ */
+public class SegmentMerger {
+
+    /** Number of term ranges merged in parallel. */
+    public static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /** The smallest number of terms worth merging on a thread of its own. */
+    public static int MIN_RUN_TERMS = 1 << 16;
+
+    /** The place of one segment in the merge. */
+    private static class Head implements Comparable<Head> {
+        final int k;
+        final TermDictionary.Cursor cursor;
+
+        Head( int k, TermDictionary.Cursor cursor ) {
+            this.k = k;
+            this.cursor = cursor;
+        }
+
+        public int compareTo( Head other ) {
+            int c = cursor.term().compareTo( other.cursor.term() );
+            return c != 0 ? c : k - other.k;
+        }
+    }
+
+
+    /**
+     *  Merges the segments into the new segment called name in dir, and
+     *  returns its number of terms.
+     */
+    public static int merge( Segment[] segments, int[][] docMaps, String dir, String name ) throws IOException {
+        boolean[] identity = new boolean[segments.length];
+        boolean ordered = true;
+        int last = -1;
+        for ( int k=0; k<segments.length; k++ ) {
+            identity[k] = true;
+            for ( int d=0; d<docMaps[k].length; d++ ) {
+                identity[k] &= docMaps[k][d] == d;
+                ordered &= docMaps[k][d] > last;
+                last = docMaps[k][d];
+            }
+        }
+        return merge( segments, docMaps, identity, ordered, null, dir, name );
+    }
+
+
+    /**
+     *  Merges segments whose docIDs are kept as they are. ordered MUST
+     *  only be true if all docIDs of segment k are smaller than those of
+     *  segment k+1.
+     */
+    public static int merge( Segment[] segments, boolean ordered, String dir, String name ) throws IOException {
+        return merge( segments, ordered, null, dir, name );
+    }
+
+
+    /**
+     *  Same as above, and drops the postings of the documents set in
+     *  deleted. Terms left without postings are dropped too.
+     */
+    public static int merge( Segment[] segments, boolean ordered, BitSet deleted,
+                             String dir, String name ) throws IOException {
+        boolean[] identity = new boolean[segments.length];
+        Arrays.fill( identity, true );
+        return merge( segments, new int[segments.length][], identity, ordered, deleted, dir, name );
+    }
+
+
+    /** docMaps[k] is null if the docIDs of segment k are kept. */
+    private static int merge( final Segment[] segments, final int[][] docMaps, final boolean[] identity,
+                              final boolean ordered, BitSet deleted, final String dir, String name ) throws IOException {
+
+        final BitSet dropped = deleted != null && deleted.isEmpty() ? null : deleted;
+        final String[] splits = splits( segments );
+        if ( splits.length == 0 ) {
+            SegmentWriter writer = new SegmentWriter( dir, name );
+            mergeRange( segments, docMaps, identity, ordered, dropped, null, null, writer );
+            int numberOfTerms = writer.numberOfTerms();
+            writer.close();
+            return numberOfTerms;
+        }
+
+        // Run k holds the terms from splits[k-1] up to splits[k].
+        final String[] runs = new String[splits.length + 1];
+        for ( int k=0; k<runs.length; k++ ) {
+            runs[k] = name + ".run" + k;
+        }
+        ForkJoinPool pool = new ForkJoinPool( PARALLELISM );
+        try {
+            pool.invoke( new RecursiveAction() {
+                protected void compute() {
+                    invokeAll( runTasks( 0, runs.length ));
+                }
+
+                /** Merges the runs from, ..., to-1, splitting the range in halves. */
+                RecursiveAction runTasks( final int from, final int to ) {
+                    return new RecursiveAction() {
+                        protected void compute() {
+                            if ( to - from > 1 ) {
+                                int mid = (from + to) >>> 1;
+                                invokeAll( runTasks( from, mid ), runTasks( mid, to ));
+                                return;
+                            }
+                            try {
+                                SegmentWriter writer = new SegmentWriter( dir, runs[from] );
+                                mergeRange( segments, docMaps, identity, ordered, dropped,
+                                            from == 0 ? null : splits[from - 1],
+                                            from == splits.length ? null : splits[from], writer );
+                                writer.close();
+                            }
+                            catch ( IOException e ) {
+                                throw new UncheckedIOException( e );
+                            }
+                        }
+                    };
+                }
+            });
+        }
+        catch ( UncheckedIOException e ) {
+            deleteRuns( dir, runs );
+            throw e.getCause();
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        SegmentWriter writer = new SegmentWriter( dir, name );
+        for ( String run : runs ) {
+            writer.append( new Segment( dir, run ));
+        }
+        int numberOfTerms = writer.numberOfTerms();
+        writer.close();
+        deleteRuns( dir, runs );
+        return numberOfTerms;
+    }
+
+
+    /**
+     *  Returns the terms where the merge is split into ranges that are
+     *  merged in parallel, taken at even distances in the largest
+     *  dictionary. There are none if the merge is too small.
+     */
+    private static String[] splits( Segment[] segments ) {
+        Segment largest = null;
+        long numberOfTerms = 0;
+        for ( Segment segment : segments ) {
+            numberOfTerms += segment.numberOfTerms();
+            if ( largest == null || segment.numberOfTerms() > largest.numberOfTerms() ) {
+                largest = segment;
+            }
+        }
+        int n = (int) Math.min( PARALLELISM, numberOfTerms / MIN_RUN_TERMS );
+        TreeSet<String> splits = new TreeSet<String>();
+        for ( int k=1; k<n; k++ ) {
+            splits.add( largest.term( (int) ((long) k * largest.numberOfTerms() / n )));
+        }
+        return splits.toArray( new String[splits.size()] );
+    }
+
+
+    private static void deleteRuns( String dir, String[] runs ) {
+        for ( String run : runs ) {
+            for ( String suffix : new String[] { Segment.DICT_SUFFIX, Segment.POST_SUFFIX } ) {
+                new File( dir, run + suffix ).delete();
+                new File( dir, run + suffix + ".tmp" ).delete();
+            }
+        }
+    }
+
+
+    /**
+     *  Merges the terms from from up to to, or from the first or up to
+     *  the last term if they are null, into writer.
+     */
+    private static void mergeRange( Segment[] segments, int[][] docMaps, boolean[] identity, boolean ordered,
+                                    BitSet deleted, String from, String to,
+                                    SegmentWriter writer ) throws IOException {
+
+        PriorityQueue<Head> queue = new PriorityQueue<Head>();
+        for ( int k=0; k<segments.length; k++ ) {
+            TermDictionary.Cursor c = segments[k].dictionary().cursor();
+            boolean found = from == null ? c.next() : (c.seek( from ) || c.ordinal() < segments[k].numberOfTerms());
+            if ( found && (to == null || c.term().compareTo( to ) < 0) ) {
+                queue.add( new Head( k, c ));
+            }
+        }
+
+        ArrayList<Head> current = new ArrayList<Head>();
+        while ( !queue.isEmpty() ) {
+            current.clear();
+            String term = queue.peek().cursor.term();
+            while ( !queue.isEmpty() && queue.peek().cursor.term().equals( term )) {
+                current.add( queue.poll() );
+            }
+
+            if ( current.size() == 1 && identity[current.get( 0 ).k] && deleted == null ) {
+                Head h = current.get( 0 );
+                writer.add( term, h.cursor.df(), segments[h.k].rawPostings( h.cursor.ordinal() ));
+            }
+            else if ( ordered && deleted == null ) {
+                int n = 0;
+                for ( Head h : current ) {
+                    n += h.cursor.df();
+                }
+                CompressedPostings.Encoder encoder = new CompressedPostings.Encoder();
+                encoder.writeList( new Concatenation( segments, docMaps, current ), n );
+                writer.add( term, n, encoder.toByteArray() );
+            }
+            else {
+                PostingsList pl = null;
+                for ( Head h : current ) {
+                    PostingsList next = segments[h.k].getPostings( h.cursor.ordinal() );
+                    if ( docMaps[h.k] != null ) {
+                        next = next.remap( docMaps[h.k] );
+                    }
+                    if ( pl == null ) {
+                        pl = next;
+                    }
+                    else {
+                        pl.merge_pl( next );
+                    }
+                }
+                if ( deleted != null ) {
+                    pl = pl.without( deleted );
+                }
+                if ( pl.size() > 0 ) {
+                    writer.add( term, pl );
+                }
+            }
+
+            for ( Head h : current ) {
+                if ( h.cursor.next() && (to == null || h.cursor.term().compareTo( to ) < 0) ) {
+                    queue.add( h );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  The postings of one term in several segments, one segment after
+     *  the other, with remapped docIDs.
+     */
+    private static class Concatenation implements PostingsIterator {
+
+        private final PostingsIterator[] parts;
+        private final int[][] maps;
+        private int part = 0;
+        private boolean started = false;
+
+        Concatenation( Segment[] segments, int[][] docMaps, ArrayList<Head> heads ) {
+            parts = new PostingsIterator[heads.size()];
+            maps = new int[heads.size()][];
+            for ( int i=0; i<parts.length; i++ ) {
+                Head h = heads.get( i );
+                parts[i] = segments[h.k].iterator( h.cursor.ordinal() );
+                maps[i] = docMaps[h.k];
+            }
+        }
+
+        public boolean next() {
+            started = true;
+            while ( part < parts.length ) {
+                if ( parts[part].next() ) {
+                    return true;
+                }
+                part++;
+            }
+            return false;
+        }
+
+        public int docID() {
+            int docID = parts[part].docID();
+            return maps[part] == null ? docID : maps[part][docID];
+        }
+
+        public int tf() {
+            return parts[part].tf();
+        }
+
+        public int offset( int k ) {
+            return parts[part].offset( k );
+        }
+
+        /** Only needed by searches, so it simply steps forward. */
+        public boolean skipTo( int target ) {
+            if ( !started && !next() ) {
+                return false;
+            }
+            while ( docID() < target ) {
+                if ( !next() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ *   Writes an immutable index segment: a postings file with the
+ *   compressed postings of every term after each other, and a term
+ *   dictionary file with the terms in sorted order. See Segment for the
+ *   file formats.
+ *
+ *   The files are written under temporary names and only renamed to
+ *   their real names by close(), once they are safely on disk.
+ */
+public class SegmentWriter {
+
+    private final File dictFile;
+    private final File postFile;
+    private final File dictTmp;
+    private final File postTmp;
+
+    private final FileOutputStream dictOut;
+    private final FileOutputStream postOut;
+    private final DataOutputStream dict;
+    private final DataOutputStream post;
+    private final TermDictionary.Writer terms;
+
+    /** Where the next postings list starts in the postings file. */
+    private long postPosition = 0;
+
+    private int numberOfTerms = 0;
+    private String lastTerm = null;
+
+
+    /** Starts writing the segment called name in the directory dir. */
+    public SegmentWriter( String dir, String name ) throws IOException {
+        dictFile = new File( dir, name + Segment.DICT_SUFFIX );
+        postFile = new File( dir, name + Segment.POST_SUFFIX );
+        dictTmp = new File( dir, name + Segment.DICT_SUFFIX + ".tmp" );
+        postTmp = new File( dir, name + Segment.POST_SUFFIX + ".tmp" );
+        dictOut = new FileOutputStream( dictTmp );
+        postOut = new FileOutputStream( postTmp );
+        dict = new DataOutputStream( new BufferedOutputStream( dictOut, 1 << 16 ));
+        post = new DataOutputStream( new BufferedOutputStream( postOut, 1 << 16 ));
+        terms = new TermDictionary.Writer( dict );
+    }
+
+    /** Adds the postings of a term. Terms MUST be added in sorted order. */
+    public void add( String term, PostingsList pl ) throws IOException {
+        add( term, pl.size(), CompressedPostings.encode( pl ).bytes() );
+    }
+
+    /**
+     *  Adds the postings of a term, already in the compressed format of
+     *  CompressedPostings. Terms MUST be added in sorted order.
+     */
+    public void add( String term, int df, byte[] postings ) throws IOException {
+        if ( lastTerm != null && lastTerm.compareTo( term ) >= 0 ) {
+            throw new IllegalArgumentException( "Terms out of order: " + lastTerm + ", " + term );
+        }
+        terms.add( term, df, postPosition );
+        post.write( postings );
+        postPosition += postings.length;
+        numberOfTerms++;
+        lastTerm = term;
+    }
+
+    /**
+     *  Adds all terms of a segment, copying its postings file as it is.
+     *  Its terms MUST come after the terms added so far.
+     */
+    public void append( Segment segment ) throws IOException {
+        if ( segment.numberOfTerms() == 0 ) {
+            return;
+        }
+        String first = segment.term( 0 );
+        if ( lastTerm != null && lastTerm.compareTo( first ) >= 0 ) {
+            throw new IllegalArgumentException( "Terms out of order: " + lastTerm + ", " + first );
+        }
+        TermDictionary.Cursor c = segment.dictionary().cursor();
+        while ( c.next() ) {
+            terms.add( c.term(), c.df(), postPosition + c.position() );
+            lastTerm = c.term();
+        }
+        ByteBuffer b = segment.postings();
+        byte[] chunk = new byte[1 << 16];
+        while ( b.hasRemaining() ) {
+            int n = Math.min( chunk.length, b.remaining() );
+            b.get( chunk, 0, n );
+            post.write( chunk, 0, n );
+        }
+        postPosition += segment.size();
+        numberOfTerms += segment.numberOfTerms();
+    }
+
+    public int numberOfTerms() {
+        return numberOfTerms;
+    }
+
+    /** Finishes both files, forces them to disk and gives them their real names. */
+    public void close() throws IOException {
+        terms.finish();
+        dict.flush();
+        post.flush();
+        Manifest.sync( dictOut );
+        Manifest.sync( postOut );
+        dict.close();
+        post.close();
+        Files.move( postTmp.toPath(), postFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        Files.move( dictTmp.toPath(), dictFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+}
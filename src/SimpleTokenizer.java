@@ -42,14 +42,14 @@ public class SimpleTokenizer {
 
     /** Handling of non-standard characters */
     static final char[] special_char =
-    { 'á', 'à', 'â', 'å', 'ä', 'é', 'è', 'ê', 'í', 'ñ', 'ö', 'ô', 'ü', 'ú', 'ù', 'û', 'Å', 'Ä', 'Ö', 165, 164, 8222, 182, 184, 732, 8211, 195 };
+    { 'á', 'à', 'â', 'å', 'ä', 'é', 'è', 'ê', 'í', 'ñ', 'ö', 'ô', 'ü', 'ú', 'ù', 'û', 'Å', 'Ä', 'Ö', 'ø', 'Ø', 165, 164, 8222, 182, 184, 732, 8211, 195 };
 
     /** 
      *  What special characters should be translated into. 
      *  NB: This array should have the same size as the one above!
      */
     static final char[] translation =
-    { 'a', 'a', 'a', 'å', 'ä', 'e', 'e', 'e', 'i', 'n', 'ö', 'o', 'ü', 'u', 'u', 'u', 'å', 'ä', 'ö', 'å', 'ä', 'ä', 'ö', 'ö', 'ö', 'ö', '#' };
+    { 'a', 'a', 'a', 'å', 'ä', 'e', 'e', 'e', 'i', 'n', 'ö', 'o', 'ü', 'u', 'u', 'u', 'å', 'ä', 'ö', 'ö', 'ö', 'å', 'ä', 'ä', 'ö', 'ö', 'ö', 'ö', '#' };
 
 
 
@@ -57,16 +57,21 @@ public class SimpleTokenizer {
         this.reader = reader;
     }
 
+    /** Closes the reader. */
+    public void close() throws IOException {
+        reader.close();
+    }
+
 
     /**
      *  Normalizes strings by converting to lower-case and removing 
      *  diacritics. Non-normalizable characters are translated into
-     *  whitespace.
+     *  whitespace, except '*' which marks a prefix query.
      */
     public static String normalize( String s ) {
         char[] buf = s.toCharArray(); 
         for ( int i=0; i<buf.length; i++ ) {
-            if ( !normalize( buf, i )) {
+            if ( buf[i] != '*' && !normalize( buf, i )) {
                 buf[i] = ' ';
             }
         }
@@ -206,9 +211,19 @@ public class SimpleTokenizer {
      *  Refills the buffer and adds end_of_file "\0" at the appropriate place.
      */
     private void refillBuffer( int start ) throws IOException {
-        int chars_read = reader.read( buf, start, BUFFER_LENGTH-start );
-        if ( chars_read < BUFFER_LENGTH-start ) {
-            buf[chars_read] = 0;
+        int wanted = BUFFER_LENGTH-start;
+        int chars_read = 0;
+        // A reader may return fewer characters than asked for
+        // before the end of the file, and -1 at the end.
+        while ( chars_read < wanted ) {
+            int n = reader.read( buf, start+chars_read, wanted-chars_read );
+            if ( n < 0 ) {
+                break;
+            }
+            chars_read += n;
+        }
+        if ( chars_read < wanted ) {
+            buf[start+chars_read] = 0;
         }
     }
 }
@@ -0,0 +1,290 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *   A sorted term dictionary, front coded in blocks of BLOCK_SIZE terms.
+ *
+ *   Every term is stored as the number of UTF-8 bytes it shares with the
+ *   term before it, followed by the rest of its bytes, its document
+ *   frequency and the position of its postings. The first term of each
+ *   block is stored in full with its absolute postings position, the
+ *   others with the gap from the previous position. All numbers are
+ *   variable-byte coded as in CompressedPostings. The blocks are
+ *   followed by the position of every block (int), the number of terms
+ *   (int), the number of blocks (int) and MAGIC (int).
+ *
+ *   Only the first term and the position of every block are kept on the
+ *   heap. A lookup binary searches them and then scans one block.
+ */
+public class TermDictionary {
+
+    /** Number of terms in a block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** Ends every dictionary. */
+    public static final int MAGIC = 0x49524432;
+
+    private final ByteBuffer buf;
+    private final int size;
+    private final int[] blockPositions;
+    private final String[] blockTerms;
+
+
+    /** Reads a dictionary that fills the whole buffer. */
+    public TermDictionary( ByteBuffer buf ) throws IOException {
+        this.buf = buf;
+        int end = buf.limit() - 12;
+        if ( end < 0 || buf.getInt( end + 8 ) != MAGIC ) {
+            throw new IOException( "Not a term dictionary" );
+        }
+        size = buf.getInt( end );
+        int numberOfBlocks = buf.getInt( end + 4 );
+        int from = end - 4 * numberOfBlocks;
+        blockPositions = new int[numberOfBlocks];
+        blockTerms = new String[numberOfBlocks];
+        Cursor c = cursor();
+        for ( int b=0; b<numberOfBlocks; b++ ) {
+            blockPositions[b] = buf.getInt( from + 4 * b );
+            c.seekBlock( b );
+            c.next();
+            blockTerms[b] = c.term();
+        }
+    }
+
+    /** Number of terms. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the ordinal of a term, or -(insertion point) - 1 if it is not in the dictionary. */
+    public int ordinal( String term ) {
+        Cursor c = cursor();
+        return c.seek( term ) ? c.ordinal() : -c.ordinal() - 1;
+    }
+
+    /** The term with the given ordinal. */
+    public String term( int ordinal ) {
+        Cursor c = cursor();
+        c.seek( ordinal );
+        return c.term();
+    }
+
+    /** Number of documents containing the term with the given ordinal. */
+    public int df( int ordinal ) {
+        Cursor c = cursor();
+        c.seek( ordinal );
+        return c.df();
+    }
+
+    /** Where the postings of the term with the given ordinal start. */
+    public int position( int ordinal ) {
+        Cursor c = cursor();
+        c.seek( ordinal );
+        return c.position();
+    }
+
+    /**
+     *  Returns the range {from, to} of ordinals of the terms starting
+     *  with prefix. The range is empty if there are none.
+     */
+    public int[] prefixRange( String prefix ) {
+        Cursor c = cursor();
+        c.seek( prefix );
+        int from = c.ordinal();
+        while ( c.ordinal() < size && c.term().startsWith( prefix )) {
+            c.next();
+        }
+        return new int[] { from, c.ordinal() };
+    }
+
+    /** Returns a cursor placed before the first term. */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Walks through the terms in order, decoding one entry at a time.
+     */
+    public class Cursor {
+
+        private final int[] pos = new int[1];
+        private int ordinal = -1;
+        private byte[] termBytes = new byte[32];
+        private int termLength = 0;
+        private String term = null;
+        private int df = 0;
+        private int position = 0;
+
+        /**
+         *  Moves to the next term. Returns false, and leaves the cursor
+         *  at ordinal size(), if there are no more terms.
+         */
+        public boolean next() {
+            if ( ordinal + 1 >= size ) {
+                ordinal = size;
+                return false;
+            }
+            ordinal++;
+            if ( ordinal % BLOCK_SIZE == 0 ) {
+                pos[0] = blockPositions[ordinal / BLOCK_SIZE];
+            }
+            int prefix = CompressedPostings.readVB( buf, pos );
+            int suffix = CompressedPostings.readVB( buf, pos );
+            termLength = prefix + suffix;
+            if ( termLength > termBytes.length ) {
+                termBytes = Arrays.copyOf( termBytes, Math.max( termLength, 2 * termBytes.length ));
+            }
+            int p = pos[0];
+            for ( int k=prefix; k<termLength; k++ ) {
+                termBytes[k] = buf.get( p++ );
+            }
+            pos[0] = p;
+            term = null;
+            df = CompressedPostings.readVB( buf, pos );
+            int gap = CompressedPostings.readVB( buf, pos );
+            position = ordinal % BLOCK_SIZE == 0 ? gap : position + gap;
+            return true;
+        }
+
+        /** Moves to the term with the given ordinal. */
+        public void seek( int ordinal ) {
+            if ( ordinal < 0 || ordinal >= size ) {
+                throw new IndexOutOfBoundsException( "" + ordinal );
+            }
+            seekBlock( ordinal / BLOCK_SIZE );
+            while ( this.ordinal < ordinal ) {
+                next();
+            }
+        }
+
+        /**
+         *  Moves to the first term that is not smaller than target, and
+         *  returns true if it is target itself.
+         */
+        public boolean seek( String target ) {
+            int b = Arrays.binarySearch( blockTerms, target );
+            if ( b < 0 ) {
+                b = Math.max( -b - 2, 0 );
+            }
+            seekBlock( b );
+            while ( next() ) {
+                int c = term().compareTo( target );
+                if ( c >= 0 ) {
+                    return c == 0;
+                }
+            }
+            return false;
+        }
+
+        /** Places the cursor right before the first term of block b. */
+        void seekBlock( int b ) {
+            ordinal = b * BLOCK_SIZE - 1;
+            if ( b < blockPositions.length ) {
+                pos[0] = blockPositions[b];
+            }
+        }
+
+        public int ordinal() {
+            return ordinal;
+        }
+
+        public String term() {
+            if ( term == null ) {
+                term = new String( termBytes, 0, termLength, StandardCharsets.UTF_8 );
+            }
+            return term;
+        }
+
+        public int df() {
+            return df;
+        }
+
+        public int position() {
+            return position;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Writes a dictionary. Terms MUST be added in sorted order.
+     */
+    public static class Writer {
+
+        private final DataOutputStream out;
+        private final CompressedPostings.Encoder block = new CompressedPostings.Encoder();
+        private int[] blockPositions = new int[16];
+        private int numberOfBlocks = 0;
+        private int size = 0;
+        private int written = 0;
+        private byte[] last = new byte[0];
+        private int lastPosition = 0;
+
+        public Writer( DataOutputStream out ) {
+            this.out = out;
+        }
+
+        public void add( String term, int df, long position ) throws IOException {
+            if ( position > Integer.MAX_VALUE ) {
+                throw new IOException( "Postings positions beyond 2 GB are not supported" );
+            }
+            byte[] bytes = term.getBytes( StandardCharsets.UTF_8 );
+            int prefix = 0;
+            if ( size % BLOCK_SIZE == 0 ) {
+                flushBlock();
+                if ( numberOfBlocks == blockPositions.length ) {
+                    blockPositions = Arrays.copyOf( blockPositions, 2 * numberOfBlocks );
+                }
+                blockPositions[numberOfBlocks++] = written;
+                lastPosition = 0;
+            }
+            else {
+                int n = Math.min( bytes.length, last.length );
+                while ( prefix < n && bytes[prefix] == last[prefix] ) {
+                    prefix++;
+                }
+            }
+            block.writeVB( prefix );
+            block.writeVB( bytes.length - prefix );
+            block.write( bytes, prefix, bytes.length - prefix );
+            block.writeVB( df );
+            block.writeVB( (int)position - lastPosition );
+            lastPosition = (int)position;
+            last = bytes;
+            size++;
+        }
+
+        /** Writes the last block and the block index. Does not close out. */
+        public void finish() throws IOException {
+            flushBlock();
+            for ( int b=0; b<numberOfBlocks; b++ ) {
+                out.writeInt( blockPositions[b] );
+            }
+            out.writeInt( size );
+            out.writeInt( numberOfBlocks );
+            out.writeInt( MAGIC );
+        }
+
+        private void flushBlock() throws IOException {
+            block.writeTo( out );
+            written += block.length();
+            block.reset();
+        }
+    }
+}
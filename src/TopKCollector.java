@@ -0,0 +1,144 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+/**
+ *   Keeps the k best scored documents seen so far in a bounded
+ *   min-heap, so ranking n candidates costs O(n log k) instead of
+ *   sorting all of them.
+ *
+ *   Higher scores are better; on equal scores the lower docID wins, which
+ *   is the order a stable sort of a docID-sorted list would give.
+ */
+public class TopKCollector {
+
+    private final int k;
+
+    /** The heap, the worst of the kept documents is at index 0. */
+    private final int[] docIDs;
+    private final double[] scores;
+    private int size = 0;
+
+    /** Number of documents offered to the collector. */
+    private int totalHits = 0;
+
+
+    public TopKCollector( int k ) {
+        this.k = Math.max( k, 0 );
+        docIDs = new int[this.k];
+        scores = new double[this.k];
+    }
+
+    /** Offers a scored document. */
+    public void collect( int docID, double score ) {
+        totalHits++;
+        if ( size < k ) {
+            docIDs[size] = docID;
+            scores[size] = score;
+            siftUp( size++ );
+        }
+        else if ( k > 0 && better( docID, score, docIDs[0], scores[0] )) {
+            docIDs[0] = docID;
+            scores[0] = score;
+            siftDown( 0 );
+        }
+    }
+
+    /** Offers every posting of a scored list. */
+    public void collect( PostingsList pl ) {
+        for ( int i=0; i<pl.size(); i++ ) {
+            collect( pl.docID( i ), pl.score( i ));
+        }
+    }
+
+    /** Number of documents offered so far. */
+    public int totalHits() {
+        return totalHits;
+    }
+
+    /**
+     *  Returns the kept documents, best first. The total hit count of
+     *  the list is the number of documents offered.
+     */
+    public PostingsList results() {
+        int[] d = new int[size];
+        double[] s = new double[size];
+        // Repeatedly removing the worst fills the arrays from the back.
+        int n = size;
+        while ( size > 0 ) {
+            size--;
+            d[size] = docIDs[0];
+            s[size] = scores[0];
+            docIDs[0] = docIDs[size];
+            scores[0] = scores[size];
+            siftDown( 0 );
+        }
+        PostingsList result = new PostingsList();
+        for ( int i=0; i<n; i++ ) {
+            result.append( d[i], s[i] );
+        }
+        result.setTotalHits( totalHits );
+        return result;
+    }
+
+    /** Returns the k best postings of a scored list, best first. */
+    public static PostingsList top_k( PostingsList pl, int k ) {
+        if ( pl == null ) {
+            return null;
+        }
+        TopKCollector collector = new TopKCollector( k );
+        collector.collect( pl );
+        return collector.results();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private static boolean better( int docA, double scoreA, int docB, double scoreB ) {
+        int c = Double.compare( scoreA, scoreB );
+        return c > 0 || ( c == 0 && docA < docB );
+    }
+
+    private void siftUp( int i ) {
+        while ( i > 0 ) {
+            int parent = (i - 1) / 2;
+            if ( !better( docIDs[parent], scores[parent], docIDs[i], scores[i] )) {
+                break;
+            }
+            swap( i, parent );
+            i = parent;
+        }
+    }
+
+    private void siftDown( int i ) {
+        while ( true ) {
+            int worst = i;
+            int l = 2*i + 1;
+            int r = l + 1;
+            if ( l < size && better( docIDs[worst], scores[worst], docIDs[l], scores[l] )) {
+                worst = l;
+            }
+            if ( r < size && better( docIDs[worst], scores[worst], docIDs[r], scores[r] )) {
+                worst = r;
+            }
+            if ( worst == i ) {
+                return;
+            }
+            swap( i, worst );
+            i = worst;
+        }
+    }
+
+    private void swap( int i, int j ) {
+        int d = docIDs[i];
+        docIDs[i] = docIDs[j];
+        docIDs[j] = d;
+        double s = scores[i];
+        scores[i] = scores[j];
+        scores[j] = s;
+    }
+}